@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.benchmarks;
+
+import me.dwtj.java.compiler.utils.CompilationTaskBuilder;
+import me.dwtj.java.compiler.utils.CompilationTaskTemplate;
+import org.apache.commons.configuration2.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.tools.JavaCompiler.CompilationTask;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of specifying a compilation task, i.e. everything up to (but not including)
+ * calling it.
+ *
+ * @author dwtj
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BuilderBenchmark {
+
+    @Param({"10", "100"})
+    public int numClasses;
+
+    private SyntheticProject project;
+    private Configuration config;
+    private CompilationTaskTemplate template;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        project = new SyntheticProject(numClasses);
+        config = project.toConfiguration();
+        template = CompilationTaskBuilder.newBuilder(config).buildTemplate();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        template.close();
+        project.close();
+    }
+
+    /** Reading the known properties of a {@link Configuration} into a new builder. */
+    @Benchmark
+    public CompilationTaskBuilder newBuilderFromConfiguration() {
+        return CompilationTaskBuilder.newBuilder(config);
+    }
+
+    /**
+     * Building a single task from a configuration, which includes creating a file manager and
+     * resolving each class name on the source path. The task is never called, so it is released
+     * (i.e. its file manager is closed), which is also measured.
+     */
+    @Benchmark
+    public CompilationTask buildTask() throws IOException {
+        CompilationTask task = CompilationTaskBuilder.newBuilder(config).buildTemplate().newTask();
+        CompilationTaskTemplate.release(task);
+        return task;
+    }
+
+    /**
+     * Creating a task from a template whose class names have already been resolved. The task is
+     * never called, so it is released (i.e. its file manager is closed), which is also measured.
+     */
+    @Benchmark
+    public CompilationTask newTaskFromTemplate() throws IOException {
+        CompilationTask task = template.newTask();
+        CompilationTaskTemplate.release(task);
+        return task;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.benchmarks;
+
+import me.dwtj.java.compiler.utils.CompilationTaskBuilder;
+import org.apache.commons.configuration2.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a full compilation (building and calling a task) of small, medium, and large synthetic
+ * projects.
+ *
+ * @author dwtj
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompileBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int numClasses;
+
+    private SyntheticProject project;
+    private Configuration config;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        project = new SyntheticProject(numClasses);
+        config = project.toConfiguration();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        project.close();
+    }
+
+    @Benchmark
+    public boolean compile() throws IOException {
+        return CompilationTaskBuilder.newBuilder(config).compile().isSuccess();
+    }
+}
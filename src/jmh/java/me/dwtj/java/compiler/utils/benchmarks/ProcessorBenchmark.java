@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.benchmarks;
+
+import com.sun.source.tree.CompilationUnitTree;
+import me.dwtj.java.compiler.utils.CompilationTaskBuilder;
+import me.dwtj.java.compiler.utils.CompilationTaskTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of the processor wrappers. Each task is processing-only (i.e. it is given
+ * "-proc:only"), so that the measurement is dominated by parsing, entering, and processing rather
+ * than by code generation.
+ *
+ * @author dwtj
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProcessorBenchmark {
+
+    /** The processors to be run by each task. */
+    public enum Processors {
+        /** The baseline: no processors at all. */
+        NONE,
+        /** A {@code UniversalProcessor} whose task does nothing. */
+        EMPTY_UNIVERSAL,
+        /** A {@code CompilationUnitsProcessor} whose task only consumes each tree. */
+        COMPILATION_UNITS
+    }
+
+    @Param({"100"})
+    public int numClasses;
+
+    @Param
+    public Processors processors;
+
+    private SyntheticProject project;
+    private CompilationTaskTemplate template;
+
+    /** Written by the compilation units processor, so that its task is not a no-op. */
+    private volatile CompilationUnitTree lastUnit;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        project = new SyntheticProject(numClasses);
+        CompilationTaskBuilder builder =
+                CompilationTaskBuilder.newBuilder(project.toConfiguration()).addProcOnlyOption();
+        switch (processors) {
+            case NONE:
+                break;
+            case EMPTY_UNIVERSAL:
+                builder.addProc((procEnv, roundEnv) -> { });
+                break;
+            case COMPILATION_UNITS:
+                builder.addProc((CompilationUnitTree unit) -> lastUnit = unit);
+                break;
+            default:
+                throw new AssertionError(processors);
+        }
+        template = builder.buildTemplate();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        template.close();
+        project.close();
+    }
+
+    @Benchmark
+    public boolean process() throws IOException {
+        return template.newTask().call();
+    }
+}
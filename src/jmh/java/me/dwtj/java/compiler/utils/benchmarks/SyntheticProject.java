@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.benchmarks;
+
+import org.apache.commons.configuration2.BaseConfiguration;
+import org.apache.commons.configuration2.Configuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A generated, throw-away project of some number of small source files, laid out on disk in a
+ * temporary directory. Each class has a few fields and methods, and refers to the class generated
+ * before it, so that compiling the project involves some attribution across files.
+ *
+ * @author dwtj
+ */
+final class SyntheticProject implements AutoCloseable {
+
+    static final String PACKAGE = "synthetic";
+
+    private final Path root;
+    private final File sourcePath;
+    private final File classOutput;
+    private final List<String> classNames;
+
+    SyntheticProject(int numClasses) throws IOException {
+        root = Files.createTempDirectory("java-compiler-utils-jmh");
+        sourcePath = root.resolve("src").toFile();
+        classOutput = root.resolve("classes").toFile();
+        classNames = new ArrayList<>(numClasses);
+
+        Path pkg = root.resolve("src").resolve(PACKAGE);
+        Files.createDirectories(pkg);
+        Files.createDirectories(classOutput.toPath());
+        for (int idx = 0; idx < numClasses; idx++) {
+            String name = "C" + idx;
+            classNames.add(PACKAGE + "." + name);
+            Files.write(pkg.resolve(name + ".java"), sourceOf(idx).getBytes(UTF_8));
+        }
+    }
+
+    /**
+     * @return A configuration of the form read by
+     *         {@link me.dwtj.java.compiler.utils.CompilationTaskBuilder#newBuilder(Configuration)}
+     *         which compiles every class in this project.
+     */
+    Configuration toConfiguration() {
+        Configuration config = new BaseConfiguration();
+        config.addProperty("source_path", sourcePath.getPath());
+        config.addProperty("class_output", classOutput.getPath());
+        config.addProperty("options", "-g:none");
+        for (String className : classNames) {
+            config.addProperty("src", className);
+        }
+        return config;
+    }
+
+    List<String> getClassNames() {
+        return classNames;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static String sourceOf(int idx) {
+        String prev = (idx == 0) ? "Object" : "C" + (idx - 1);
+        return "package " + PACKAGE + ";\n"
+             + "\n"
+             + "public class C" + idx + " {\n"
+             + "    private final " + prev + " prev;\n"
+             + "    private int count;\n"
+             + "\n"
+             + "    public C" + idx + "(" + prev + " prev) {\n"
+             + "        this.prev = prev;\n"
+             + "    }\n"
+             + "\n"
+             + "    public " + prev + " getPrev() {\n"
+             + "        return prev;\n"
+             + "    }\n"
+             + "\n"
+             + "    public int next(int step) {\n"
+             + "        for (int i = 0; i < step; i++) {\n"
+             + "            count += (i % 2 == 0) ? i : -i;\n"
+             + "        }\n"
+             + "        return count;\n"
+             + "    }\n"
+             + "\n"
+             + "    @Override\n"
+             + "    public String toString() {\n"
+             + "        return \"C" + idx + "(\" + prev + \", \" + count + \")\";\n"
+             + "    }\n"
+             + "}\n";
+    }
+}
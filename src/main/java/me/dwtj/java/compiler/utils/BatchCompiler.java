@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.Collections.emptyList;
+
+/**
+ * <p>Compiles many independent compilation tasks concurrently, each specified by its own
+ * {@link CompilationTaskBuilder}, on a bounded pool of worker threads.
+ *
+ * <p>Every task compiled by a batch compiler shares the batch compiler's read-only resources:
+ * Unless a builder has already been given its own {@link StandardJavaFileManagerPool} or its own
+ * {@link JavaCompilerSource}, its tasks lease their file managers from the batch compiler's pool,
+ * and so all such tasks use the one compiler instance of that pool and reuse its warm file
+ * managers (and thus their class path indexes). Since the pool keys its file managers on their
+ * input locations only, tasks which share a class path share warm file managers even if they
+ * write their outputs to different directories. Each task still gets its own file manager while
+ * it is running.
+ *
+ * <p>Each task's diagnostics are collected separately and returned in its
+ * {@link CompilationResult}, along with the files it produced and the time (and other costs) taken
+ * to build and call it. Any diagnostic listener which was set on a builder is still given all of
+ * its task's diagnostics. The builders' own settings are not changed.
+ *
+ * @see CompilationTaskBuilder
+ *
+ * @author dwtj
+ */
+final public class BatchCompiler implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final StandardJavaFileManagerPool fileManagerPool;
+    private final boolean ownsResources;
+
+    /**
+     * Instantiates a batch compiler with its own fixed-size pool of worker threads and its own
+     * pool of file managers from the system Java compiler. Both are shut down by {@link #close()}.
+     *
+     * @param parallelism The number of worker threads, i.e. the maximum number of tasks which will
+     *                    be compiled at once.
+     */
+    public BatchCompiler(int parallelism) {
+        this(Executors.newFixedThreadPool(parallelism),
+             new StandardJavaFileManagerPool(JavaCompilerSource.system().get(), parallelism),
+             true);
+    }
+
+    /**
+     * Instantiates a batch compiler which runs its tasks on the given executor and leases file
+     * managers from the given pool. Neither is shut down by {@link #close()}.
+     *
+     * @param executor        The executor on which tasks are to be built and called.
+     * @param fileManagerPool The file manager pool to be shared by all tasks whose builder does not
+     *                        already have a pool.
+     */
+    public BatchCompiler(ExecutorService executor, StandardJavaFileManagerPool fileManagerPool) {
+        this(executor, fileManagerPool, false);
+    }
+
+    private BatchCompiler(ExecutorService executor, StandardJavaFileManagerPool fileManagerPool,
+                          boolean ownsResources) {
+        assert executor != null;
+        assert fileManagerPool != null;
+        this.executor = executor;
+        this.fileManagerPool = fileManagerPool;
+        this.ownsResources = ownsResources;
+    }
+
+    /**
+     * Builds and calls one compilation task for each of the given builders, and waits for all of
+     * them to finish. The builders are consumed, i.e. {@link CompilationTaskBuilder#compile()} is
+     * called on each of them, except that those without their own pool use this batch compiler's.
+     *
+     * <p>An exception thrown while building or calling one task does not affect the others; it is
+     * instead reported in that task's result. An {@link Error} (e.g. an assertion failure within
+     * javac) is not such an exception: it is rethrown once every task has finished.
+     *
+     * @param  builders The builders specifying the tasks to be compiled.
+     * @return The results of compiling each task, in the same order as the given builders.
+     *
+     * @throws InterruptedException
+     *            If the current thread is interrupted while waiting for tasks to finish.
+     */
+    public List<CompilationResult> compileAll(Collection<CompilationTaskBuilder> builders)
+                                                                    throws InterruptedException {
+        assert builders != null;
+        List<Callable<CompilationResult>> jobs = new ArrayList<>(builders.size());
+        for (CompilationTaskBuilder builder : builders) {
+            jobs.add(() -> compile(builder));
+        }
+
+        List<CompilationResult> results = new ArrayList<>(jobs.size());
+        for (Future<CompilationResult> future : executor.invokeAll(jobs)) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException ex) {
+                // `compile()` reports its own exceptions, so the cause can only be some error.
+                Throwable cause = ex.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Shuts down the worker threads and the file manager pool, but only if they were made by this
+     * batch compiler.
+     */
+    @Override
+    public void close() {
+        if (ownsResources) {
+            executor.shutdown();
+            fileManagerPool.close();
+        }
+    }
+
+    /**
+     * Compiles the given builder's task. If the task cannot be built, then the result only has
+     * the failure; there is no task whose diagnostics could be in it.
+     */
+    private CompilationResult compile(CompilationTaskBuilder builder) {
+        CompilationMeter meter = CompilationMeter.start();
+        try {
+            return builder.compile(fileManagerPool);
+        } catch (IOException | RuntimeException ex) {
+            meter.stop();
+            return new CompilationResult(false, emptyList(), 0, emptyList(), meter, ex);
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import javax.tools.FileObject;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static javax.tools.StandardLocation.ANNOTATION_PROCESSOR_PATH;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+import static javax.tools.StandardLocation.CLASS_PATH;
+import static javax.tools.StandardLocation.PLATFORM_CLASS_PATH;
+import static javax.tools.StandardLocation.SOURCE_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_PATH;
+
+/**
+ * <p>A persistent, content-addressed cache of compilation outputs, kept in some directory on disk.
+ * A task created from a {@link CompilationTaskTemplate} whose builder was given a cache (via
+ * {@link CompilationTaskBuilder#setCompilationCache}) first computes a key from all of its inputs.
+ * If the cache has an entry for that key, then the entry's files are copied into the task's class
+ * and source output directories, and javac is not run at all. Otherwise, javac is run as usual,
+ * and if compilation succeeds, the files which it wrote to its output directories are stored in a
+ * new entry.
+ *
+ * <p>A key is a SHA-256 hash of: the Java version; the compiler options; the cache keys of the
+ * processors (see below); the URIs and contents of the compilation units; and the path, size, and
+ * modification time of every file within each class path, source path, platform class path, and
+ * annotation processor path entry. If the class path is not configured, then the compiler's
+ * default class path (i.e. this JVM's {@code java.class.path}) is hashed instead. (Directories on
+ * these paths are walked, so very large directories make keys more costly to compute.)
+ *
+ * <p>A processor's cache key is its class name, unless it was added with an explicit key via
+ * {@link CompilationTaskBuilder#addProcFactory(java.util.function.Supplier, String)}. Processors
+ * which wrap a lambda (e.g. those added via the builder's {@code addProc()} helpers) cannot be
+ * identified by their class, so they must be given an explicit key: creating a task with a cache
+ * fails with an {@link IllegalStateException} otherwise.
+ *
+ * <p><em>Warning:</em> On a cache hit, no processors are run, and no diagnostics are reported. So a
+ * cache should only be used with processors whose outputs are determined by their cache key and
+ * the compilation's inputs, and whose only effects are those outputs.
+ *
+ * <p>Many processes (and threads) may safely share one cache directory. Entries are first written
+ * to a private temporary directory and then atomically renamed into place, after which they are
+ * never modified. So readers never need locks, and they never see a partial entry. Eviction
+ * likewise atomically renames an entry out of place before deleting it. If an entry is evicted
+ * while it is being read, then the read is treated as a miss.
+ *
+ * <p>The total size of all entries is bounded: after each new entry is stored, the least recently
+ * used entries are evicted until the total size is within the bound. An entry's use is recorded
+ * by updating its directory's modification time.
+ *
+ * @see CompilationTaskBuilder#setCompilationCache
+ *
+ * @author dwtj
+ */
+final public class CompilationCache {
+
+    private static final String ENTRIES_DIR = "entries";
+    private static final String TEMP_DIR = "tmp";
+    private static final String CLASS_OUTPUT_DIR = "class";
+    private static final String SOURCE_OUTPUT_DIR = "source";
+
+    private final Path directory;
+    private final long maxBytes;
+
+    /**
+     * @param directory The directory in which the cache is kept. It is created if need be.
+     * @param maxBytes  The maximum total size, in bytes, of all of the cache's entries.
+     *
+     * @throws IOException If the cache's directories could not be created.
+     */
+    public CompilationCache(File directory, long maxBytes) throws IOException {
+        assert directory != null;
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Negative `maxBytes`: " + maxBytes);
+        }
+        this.directory = directory.toPath();
+        this.maxBytes = maxBytes;
+        Files.createDirectories(this.directory.resolve(ENTRIES_DIR));
+        Files.createDirectories(this.directory.resolve(TEMP_DIR));
+    }
+
+    /**
+     * @return The directory in which the cache is kept.
+     */
+    public File getDirectory() {
+        return directory.toFile();
+    }
+
+    /**
+     * Evicts every entry in the cache.
+     *
+     * @throws IOException If some entry could not be evicted.
+     */
+    public void clear() throws IOException {
+        for (Path entry : listEntries()) {
+            evict(entry);
+        }
+    }
+
+    /**
+     * @return A new task as specified by the template, customized by the given hooks (if they are
+     *         non-null), which first looks for its outputs in this cache.
+     */
+    CompilationTask newTask(CompilationTaskTemplate template, TaskHooks hooks) throws IOException {
+        Map<StandardLocation, List<File>> locations = template.getLocations().snapshot();
+        Path classOutput = singleDirectory(locations, CLASS_OUTPUT);
+        Path sourceOutput = locations.containsKey(SOURCE_OUTPUT)
+                                ? singleDirectory(locations, SOURCE_OUTPUT) : classOutput;
+
+        // The task is created first, so that its processor factories have already been called
+        // (and so their classes are known) when the key is computed.
+        Recorder recorder = new Recorder();
+        CompilationTask task = template.newTask(template.getLocations(),
+                                                template.getCompilationUnits(), null,
+                                                TaskHooks.compose(recorder, hooks));
+        String key;
+        try {
+            key = key(template, locations);
+        } catch (IOException | RuntimeException ex) {
+            CompilationTaskTemplate.release(task);
+            throw ex;
+        }
+        return new ForwardingCompilationTask(task) {
+            @Override
+            public Boolean call() {
+                try {
+                    if (restore(key, classOutput, sourceOutput, hooks)) {
+                        CompilationTaskTemplate.release(delegate);
+                        return true;
+                    }
+                } catch (IOException ex) {
+                    // An unreadable entry is just a miss.
+                }
+                boolean success = delegate.call();
+                if (success) {
+                    try {
+                        store(key, recorder.outputs, classOutput, sourceOutput);
+                    } catch (IOException ex) {
+                        // Failing to populate the cache does not fail the compilation.
+                    }
+                }
+                return success;
+            }
+        };
+    }
+
+    private static Path singleDirectory(Map<StandardLocation, List<File>> locations,
+                                        StandardLocation location) {
+        List<File> dirs = locations.get(location);
+        if (dirs == null || dirs.size() != 1) {
+            String msg = "A compilation cache requires a single " + location + " directory.";
+            throw new IllegalStateException(msg);
+        }
+        return dirs.get(0).toPath();
+    }
+
+    private static String key(CompilationTaskTemplate template,
+                              Map<StandardLocation, List<File>> locations) throws IOException {
+        MessageDigest digest = IncrementalCompilation.newDigest();
+        update(digest, "java.version", System.getProperty("java.version"));
+        update(digest, "compiler", template.getCompiler().getClass().getName());
+        for (String option : template.getOptions()) {
+            update(digest, "option", option);
+        }
+        for (String processor : template.getProcessorCacheKeys()) {
+            update(digest, "processor", processor);
+        }
+        for (JavaFileObject unit : template.getCompilationUnits()) {
+            update(digest, "unit", unit.toUri().toString());
+            update(digest, "content", unit.getCharContent(true).toString());
+        }
+        for (StandardLocation location : new StandardLocation[] {
+                CLASS_PATH, SOURCE_PATH, PLATFORM_CLASS_PATH, ANNOTATION_PROCESSOR_PATH }) {
+            update(digest, "location", location.getName());
+            // An unset class path is javac's default class path, which is also hashed. (The other
+            // paths which are unset are either also searched on the class path, or are part of
+            // the JDK, which is identified by its version.)
+            List<File> entries = (location == CLASS_PATH)
+                    ? template.getClassPath()
+                    : locations.getOrDefault(location, new ArrayList<>());
+            for (File entry : entries) {
+                updateWithTree(digest, entry.toPath());
+            }
+        }
+        return IncrementalCompilation.toHex(digest.digest());
+    }
+
+    private static void updateWithTree(MessageDigest digest, Path root) throws IOException {
+        if (!Files.exists(root)) {
+            update(digest, "missing", root.toString());
+            return;
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : files.filter(Files::isRegularFile).sorted()
+                                  .collect(Collectors.toList())) {
+                update(digest, "file", file.toString());
+                update(digest, "size", Long.toString(Files.size(file)));
+                update(digest, "mtime", Long.toString(Files.getLastModifiedTime(file).toMillis()));
+            }
+        }
+    }
+
+    private static void update(MessageDigest digest, String label, String value) {
+        // Length-prefixing each field keeps distinct sequences of fields from colliding.
+        for (String s : new String[] { label, value }) {
+            byte[] bytes = String.valueOf(s).getBytes(UTF_8);
+            digest.update(Integer.toString(bytes.length).getBytes(UTF_8));
+            digest.update((byte) ':');
+            digest.update(bytes);
+        }
+    }
+
+    /**
+     * @return Whether there was an entry with the given key, which has now been restored. Each
+     *         restored file is reported to the given hooks (if they are non-null).
+     */
+    private boolean restore(String key, Path classOutput, Path sourceOutput,
+                            TaskHooks hooks) throws IOException {
+        Path entry = directory.resolve(ENTRIES_DIR).resolve(key);
+        if (!Files.isDirectory(entry)) {
+            return false;
+        }
+        try {
+            List<Path> classes = copyTree(entry.resolve(CLASS_OUTPUT_DIR), classOutput);
+            List<Path> sources = copyTree(entry.resolve(SOURCE_OUTPUT_DIR), sourceOutput);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            if (hooks != null) {
+                classes.forEach(file -> hooks.outputRestored(CLASS_OUTPUT, file));
+                sources.forEach(file -> hooks.outputRestored(SOURCE_OUTPUT, file));
+            }
+            return true;
+        } catch (NoSuchFileException ex) {
+            return false;  // The entry was evicted while it was being read.
+        }
+    }
+
+    private void store(String key, Set<Output> outputs, Path classOutput, Path sourceOutput)
+                                                                            throws IOException {
+        Path entry = directory.resolve(ENTRIES_DIR).resolve(key);
+        if (Files.exists(entry)) {
+            return;
+        }
+        Path temp = directory.resolve(TEMP_DIR).resolve(key + "-" + UUID.randomUUID());
+        try {
+            for (Output output : outputs) {
+                Path root = (output.location == CLASS_OUTPUT) ? classOutput : sourceOutput;
+                String dir = (output.location == CLASS_OUTPUT) ? CLASS_OUTPUT_DIR
+                                                               : SOURCE_OUTPUT_DIR;
+                Path relative = root.toAbsolutePath().relativize(output.file.toAbsolutePath());
+                Path target = temp.resolve(dir).resolve(relative.toString());
+                Files.createDirectories(target.getParent());
+                Files.copy(output.file, target, REPLACE_EXISTING);
+            }
+            Files.createDirectories(temp);
+            try {
+                Files.move(temp, entry, ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException | DirectoryNotEmptyException
+                     | AtomicMoveNotSupportedException ex) {
+                // Another writer got there first (or renaming cannot be atomic here).
+                deleteTree(temp);
+                return;
+            }
+        } catch (IOException | RuntimeException ex) {
+            deleteTree(temp);
+            throw ex;
+        }
+        evictToFit();
+    }
+
+    private void evictToFit() throws IOException {
+        List<Path> entries = listEntries();
+        Map<Path, Long> sizes = new HashMap<>();
+        Map<Path, Long> lastUsed = new HashMap<>();
+        long total = 0;
+        for (Path entry : entries) {
+            try {
+                long size = sizeOf(entry);
+                sizes.put(entry, size);
+                lastUsed.put(entry, Files.getLastModifiedTime(entry).toMillis());
+                total += size;
+            } catch (NoSuchFileException | UncheckedIOException ex) {
+                sizes.put(entry, 0L);  // Already evicted by someone else.
+                lastUsed.put(entry, Long.MIN_VALUE);
+            }
+        }
+        entries.sort(Comparator.comparing(lastUsed::get));
+        for (Path entry : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            evict(entry);
+            total -= sizes.get(entry);
+        }
+    }
+
+    private List<Path> listEntries() throws IOException {
+        try (Stream<Path> entries = Files.list(directory.resolve(ENTRIES_DIR))) {
+            return entries.collect(Collectors.toList());
+        }
+    }
+
+    private void evict(Path entry) throws IOException {
+        Path doomed = directory.resolve(TEMP_DIR).resolve("evicted-" + UUID.randomUUID());
+        try {
+            Files.move(entry, doomed, ATOMIC_MOVE);
+        } catch (NoSuchFileException ex) {
+            return;  // Already evicted by someone else.
+        }
+        deleteTree(doomed);
+    }
+
+    private static long sizeOf(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile).mapToLong(f -> {
+                try {
+                    return Files.size(f);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }).sum();
+        }
+    }
+
+    /** @return The copied files, i.e. their paths within the target directory. */
+    private static List<Path> copyTree(Path from, Path to) throws IOException {
+        List<Path> copied = new ArrayList<>();
+        if (!Files.isDirectory(from)) {
+            return copied;
+        }
+        try (Stream<Path> files = Files.walk(from)) {
+            for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                Path target = to.resolve(from.relativize(file).toString());
+                Files.createDirectories(target.getParent());
+                Files.copy(file, target, REPLACE_EXISTING);
+                copied.add(target);
+            }
+        }
+        return copied;
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : files.sorted(Comparator.reverseOrder())
+                                  .collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+
+    /** A file written by a compilation task to one of its output locations. */
+    private static final class Output {
+
+        final StandardLocation location;
+        final Path file;
+
+        Output(StandardLocation location, Path file) {
+            this.location = location;
+            this.file = file;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Output && ((Output) o).location == location
+                                       && ((Output) o).file.equals(file);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * location.hashCode() + file.hashCode();
+        }
+    }
+
+
+    /** Records every file which the task's file manager opens for output. */
+    private static final class Recorder implements TaskHooks {
+
+        final Set<Output> outputs = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public JavaFileManager wrapFileManager(JavaFileManager fileManager) {
+            return new OutputRecordingFileManager(fileManager, this::record);
+        }
+
+        private void record(JavaFileManager.Location location, FileObject file) {
+            URI uri = file.toUri();
+            if ((location == CLASS_OUTPUT || location == SOURCE_OUTPUT)
+                    && "file".equals(uri.getScheme())) {
+                outputs.add(new Output((StandardLocation) location, Paths.get(uri)));
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the wall time, CPU time and allocations of the current thread, and the garbage
+ * collections of the whole JVM, from when the meter is started until it is stopped. A counter
+ * which the JVM does not support is reported as {@code -1}.
+ *
+ * @see CompilationResult
+ *
+ * @author dwtj
+ */
+final class CompilationMeter {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final long startNanos;
+    private final long startCpuNanos;
+    private final long startAllocatedBytes;
+    private final long startGcCount;
+    private final long startGcMillis;
+
+    long elapsedNanos = -1;
+    long cpuNanos = -1;
+    long allocatedBytes = -1;
+    long gcCount = -1;
+    long gcMillis = -1;
+
+    private CompilationMeter() {
+        startGcCount = gcCount();
+        startGcMillis = gcMillis();
+        startAllocatedBytes = allocatedBytes();
+        startCpuNanos = cpuNanos();
+        startNanos = System.nanoTime();
+    }
+
+    static CompilationMeter start() {
+        return new CompilationMeter();
+    }
+
+    /** Sets each counter to its change since the meter was started. */
+    void stop() {
+        elapsedNanos = System.nanoTime() - startNanos;
+        cpuNanos = delta(startCpuNanos, cpuNanos());
+        allocatedBytes = delta(startAllocatedBytes, allocatedBytes());
+        gcCount = delta(startGcCount, gcCount());
+        gcMillis = delta(startGcMillis, gcMillis());
+    }
+
+    private static long delta(long start, long end) {
+        return (start < 0 || end < 0) ? -1 : end - start;
+    }
+
+    private static long cpuNanos() {
+        try {
+            return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime()
+                                                             : -1;
+        } catch (UnsupportedOperationException ex) {
+            return -1;
+        }
+    }
+
+    private static long allocatedBytes() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+        try {
+            return threads.isThreadAllocatedMemoryEnabled()
+                       ? threads.getThreadAllocatedBytes(currentThreadId())
+                       : -1;
+        } catch (UnsupportedOperationException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the ID of the current thread. {@link Thread#getId()} is deprecated (in favor of
+     * {@code threadId()}) since Java 19, but the latter does not exist in Java 8, nor does the
+     * no-argument {@code getCurrentThreadAllocatedBytes()}, which was added in Java 14.
+     */
+    @SuppressWarnings("deprecation")
+    private static long currentThreadId() {
+        return Thread.currentThread().getId();
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            long count = gc.getCollectionCount();
+            if (count < 0) {
+                return -1;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            long millis = gc.getCollectionTime();
+            if (millis < 0) {
+                return -1;
+            }
+            total += millis;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import me.dwtj.java.compiler.utils.diag.CompactDiagnostic;
+
+import javax.tools.JavaCompiler.CompilationTask;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * <p>An immutable summary of the outcome of building and calling a single {@link CompilationTask}:
+ * whether it succeeded, its diagnostics, the files which it produced, and what it cost.
+ *
+ * <p>The costs are measured from when the task started being built until its call returned. The
+ * CPU time and allocations are those of the thread which built and called the task (which is the
+ * thread on which javac runs, but note that work done on other threads, e.g. by a
+ * {@link me.dwtj.java.compiler.utils.proc.CompilationUnitsProcessor} with an executor, is not
+ * counted). The garbage collection counts are of the whole JVM, so they include collections
+ * caused by anything else which was running at the same time. Any counter which the JVM does not
+ * support is {@code -1}.
+ *
+ * @see CompilationTaskBuilder#compile()
+ * @see CompilationTaskTemplate#compile()
+ * @see BatchCompiler
+ *
+ * @author dwtj
+ */
+final public class CompilationResult {
+
+    private final boolean success;
+    private final List<CompactDiagnostic> diagnostics;
+    private final int droppedDiagnostics;
+    private final List<URI> producedFiles;
+    private final long elapsedNanos;
+    private final long cpuNanos;
+    private final long allocatedBytes;
+    private final long gcCount;
+    private final long gcMillis;
+    private final Throwable failure;
+
+    CompilationResult(boolean success,
+                      List<CompactDiagnostic> diagnostics,
+                      int droppedDiagnostics,
+                      List<URI> producedFiles,
+                      CompilationMeter meter,
+                      Throwable failure) {
+        assert diagnostics != null;
+        assert producedFiles != null;
+        assert meter != null;
+        this.success = success;
+        this.diagnostics = unmodifiableList(new ArrayList<>(diagnostics));
+        this.droppedDiagnostics = droppedDiagnostics;
+        this.producedFiles = unmodifiableList(new ArrayList<>(producedFiles));
+        this.elapsedNanos = meter.elapsedNanos;
+        this.cpuNanos = meter.cpuNanos;
+        this.allocatedBytes = meter.allocatedBytes;
+        this.gcCount = meter.gcCount;
+        this.gcMillis = meter.gcMillis;
+        this.failure = failure;
+    }
+
+    /**
+     * @return {@code true} if and only if the task was built and called, and the call reported
+     *         that compilation succeeded, i.e. there were no errors.
+     */
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * @return The diagnostics which were reported while building and calling the task, in the
+     *         order in which they were reported, except for those which were dropped because of
+     *         the builder's {@link CompilationTaskBuilder#setResultDiagnosticLimit limit}. These
+     *         are compact copies, so they do not keep the compilation's files or trees in memory.
+     */
+    public List<CompactDiagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * @return The number of diagnostics which were reported but were not kept, because there were
+     *         more of their kind than the builder's
+     *         {@link CompilationTaskBuilder#setResultDiagnosticLimit limit}.
+     */
+    public int getDroppedDiagnosticCount() {
+        return droppedDiagnostics;
+    }
+
+    /**
+     * @return The files which the task opened for output (e.g. class files and generated sources),
+     *         in the order in which they were opened, or which it restored from a
+     *         {@link CompilationCache}. Files in memory have the URIs given by their
+     *         {@link me.dwtj.java.compiler.utils.mem.InMemoryOutput}.
+     */
+    public List<URI> getProducedFiles() {
+        return producedFiles;
+    }
+
+    /**
+     * @return The wall time, in nanoseconds, spent building and calling the task.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return The CPU time, in nanoseconds, spent building and calling the task, or {@code -1}.
+     */
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    /**
+     * @return The number of bytes allocated while building and calling the task, or {@code -1}.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return The number of garbage collections (by any of the JVM's collectors) which happened
+     *         while building and calling the task, or {@code -1}.
+     */
+    public long getGcCount() {
+        return gcCount;
+    }
+
+    /**
+     * @return The approximate accumulated time, in milliseconds, of the garbage collections which
+     *         happened while building and calling the task, or {@code -1}.
+     */
+    public long getGcMillis() {
+        return gcMillis;
+    }
+
+    /**
+     * @return The exception which prevented the task from being built or which was thrown while
+     *         calling it, or {@code null} if there was no such exception.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return "CompilationResult{success=" + success
+                + ", diagnostics=" + diagnostics.size()
+                + ", droppedDiagnostics=" + droppedDiagnostics
+                + ", producedFiles=" + producedFiles.size()
+                + ", elapsedNanos=" + elapsedNanos
+                + ", cpuNanos=" + cpuNanos
+                + ", allocatedBytes=" + allocatedBytes
+                + ", gcCount=" + gcCount
+                + ", gcMillis=" + gcMillis
+                + ", failure=" + failure + "}";
+    }
+}
@@ -16,9 +16,16 @@
 package me.dwtj.java.compiler.utils;
 
 import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import me.dwtj.java.compiler.utils.mem.CharSequenceSource;
+import me.dwtj.java.compiler.utils.mem.InMemoryJavaFileManager;
+import me.dwtj.java.compiler.utils.mem.InMemoryOutput;
+import me.dwtj.java.compiler.utils.proc.AnnotationsProcessor;
 import me.dwtj.java.compiler.utils.proc.CompilationUnitsProcessor;
 import me.dwtj.java.compiler.utils.proc.UniversalProcessor;
 import org.apache.commons.configuration2.Configuration;
+import org.apache.commons.configuration2.ImmutableConfiguration;
 import org.apache.commons.configuration2.PropertiesConfiguration;
 import org.apache.commons.configuration2.builder.FileBasedConfigurationBuilder;
 import org.apache.commons.configuration2.builder.fluent.Parameters;
@@ -29,6 +36,8 @@ import org.apache.commons.configuration2.ex.ConfigurationException;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.Processor;
 import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
 import javax.tools.DiagnosticListener;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaCompiler.CompilationTask;
@@ -41,27 +50,44 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.Collections.unmodifiableSet;
 import static java.util.stream.Collectors.toList;
 import static javax.tools.JavaFileObject.Kind.SOURCE;
+import static javax.tools.StandardLocation.ANNOTATION_PROCESSOR_PATH;
 import static javax.tools.StandardLocation.CLASS_OUTPUT;
 import static javax.tools.StandardLocation.CLASS_PATH;
+import static javax.tools.StandardLocation.NATIVE_HEADER_OUTPUT;
+import static javax.tools.StandardLocation.PLATFORM_CLASS_PATH;
 import static javax.tools.StandardLocation.SOURCE_OUTPUT;
 import static javax.tools.StandardLocation.SOURCE_PATH;
-import static javax.tools.ToolProvider.getSystemJavaCompiler;
 import static me.dwtj.java.compiler.utils.CompilationTaskBuilder.StandardJavaFileManagerConfig.makeConfig;
 
 /**
  * A builder for (un-called) instances of {@link JavaCompiler.CompilationTask} to simplify correct
  * configuration of the {@link JavaCompiler Java Compiler API}.
  *
- * <p>All {@link CompilationTask}s created via this API are created using a {@link JavaCompiler}
- * obtained via {@link ToolProvider#getSystemJavaCompiler()}. The builder has methods of the form
+ * <p>By default, all {@link CompilationTask}s created via this API are created using the
+ * {@link JavaCompiler} obtained via {@link ToolProvider#getSystemJavaCompiler()}, which is looked
+ * up only once per process (see {@link JavaCompilerSource#system()}). Some other compiler can be
+ * used by calling {@link #setCompilerSource} or {@link #setCompiler}. The builder has methods of the form
  * `set*()`, `add*()`, and `addAll*()` to let the client <em>specify</em> a {@link CompilationTask}
  * which they want to create from such a {@link JavaCompiler} instance.
  *
@@ -70,7 +96,9 @@ import static me.dwtj.java.compiler.utils.CompilationTaskBuilder.StandardJavaFil
  *
  * <p>Once the client has finished specifying the desired compilation task using these methods, then
  * {@link #build()} can be called to obtain such a compilation task. This compilation task will not
- * have been called. Note that {@link #build()} can only be called once.
+ * have been called. Note that {@link #build()} can only be called once. If many such tasks are to
+ * be created from one specification, {@link #buildTemplate()} can instead be called (any number of
+ * times) to obtain a {@link CompilationTaskTemplate}, from which any number of tasks can be made.
  *
  * <p>A key part of the configuration of a {@link JavaCompiler} is the configuration of the
  * {@link JavaFileManager} to be used in the compilation. Any {@link JavaCompiler} which is created
@@ -86,9 +114,7 @@ import static me.dwtj.java.compiler.utils.CompilationTaskBuilder.StandardJavaFil
  *
  * @author dwtj, jlmaddox
  */
-// TODO: Let a single builder create multiple `CompilationTask` instances.
 // TODO: Support passing in names of classes to `compiler.getTask()`.
-// TODO: Consider allowing dependency injection in the form of a JavaCompiler
 final public class CompilationTaskBuilder {
 
     private CompilationTaskBuilder() { }
@@ -109,6 +135,18 @@ final public class CompilationTaskBuilder {
      *       example, if <code>pkg.subpkg.MyCls</code> is in this list, then the source path will be
      *       searched for the file <code>pkg/subpkg/MyCls.java</code>.</li>
      *   <li>
+     *     <code>src_packages</code> - A list of packages, all of whose source files (but not those
+     *     of their subpackages) are to be compiled. See {@link #addPackage}.
+     *   </li>
+     *   <li>
+     *     <code>src_packages_recursive</code> - A list of packages, all of whose source files and
+     *     all of whose subpackages' source files are to be compiled. See {@link #addPackage}.
+     *   </li>
+     *   <li>
+     *     <code>src_globs</code> - A list of globs selecting source files on the source path to be
+     *     compiled. See {@link #addSourceGlob}.
+     *   </li>
+     *   <li>
      *     <code>source_path</code> - A list of file paths to be searched for client source files.
      *   </li>
      *   <li>
@@ -132,6 +170,19 @@ final public class CompilationTaskBuilder {
      * @return A newly instantiated and appropriately initialized builder.
      */
     public static CompilationTaskBuilder newBuilder(Configuration config) {
+        return newBuilder((ImmutableConfiguration) config);
+    }
+
+    /**
+     * Instantiates a new builder using information in the given read-only configuration, just as
+     * {@link #newBuilder(Configuration)} does. (This is the overload which is used with configs
+     * obtained from {@link #compilePropertiesCached}.)
+     *
+     * @param config The configuration to be used in initializing the builder.
+     *
+     * @return A newly instantiated and appropriately initialized builder.
+     */
+    public static CompilationTaskBuilder newBuilder(ImmutableConfiguration config) {
         final StandardJavaFileManagerConfig fileManager = makeConfig();
         fileManager.addAllToClassPath(config.getList(String.class, "class_path", emptyList())
                                             .stream()
@@ -144,9 +195,16 @@ final public class CompilationTaskBuilder {
                    .setSourceOutputDir(newFileOrNullPassthrough(config.getString("source_output")))
                    .setClassOutputDir(newFileOrNullPassthrough(config.getString("class_output")));
 
-        return newBuilder().setFileManagerConfig(fileManager)
-                           .addAllClasses(config.getList(String.class, "src", emptyList()))
-                           .addAllOptions(config.getList(String.class, "options", emptyList()));
+        CompilationTaskBuilder builder = newBuilder();
+        config.getList(String.class, "src_packages", emptyList())
+              .forEach(pkg -> builder.addPackage(pkg, false));
+        config.getList(String.class, "src_packages_recursive", emptyList())
+              .forEach(pkg -> builder.addPackage(pkg, true));
+        config.getList(String.class, "src_globs", emptyList())
+              .forEach(builder::addSourceGlob);
+        return builder.setFileManagerConfig(fileManager)
+                      .addAllClasses(config.getList(String.class, "src", emptyList()))
+                      .addAllOptions(config.getList(String.class, "options", emptyList()));
     }
 
     /**
@@ -176,6 +234,43 @@ final public class CompilationTaskBuilder {
         }
     }
 
+    /**
+     * <p>Just like {@link #compileProperties}, except that the parsed configuration is cached, and
+     * is reused by later calls for the same file (as identified by its canonical path) until the
+     * file changes. The cache is shared by the whole process, and this method may be called
+     * concurrently.
+     *
+     * <p>A file is only re-read if its size or modification time has changed since it was last
+     * read, and it is only re-parsed if its contents have also changed (as judged by a hash).
+     * Note that a change which preserves both the size and the modification time of a file (e.g.
+     * two edits within the file system's timestamp granularity) will not be noticed.
+     *
+     * <p>The cache keeps at most a few hundred files; the least recently used files are evicted
+     * beyond that, and are then re-read when they are next asked for.
+     *
+     * <p>Because the returned configuration is shared with other callers, it is read-only.
+     *
+     * @param configFile A valid Apache Commons Configuration Properties file.
+     *
+     * @return A read-only {@link ImmutableConfiguration} corresponding to the file's current
+     *         contents.
+     *
+     * @throws java.io.UncheckedIOException If the file could not be read.
+     *
+     * @see #clearCompilePropertiesCache()
+     */
+    public static ImmutableConfiguration compilePropertiesCached(File configFile) {
+        assert configFile != null;
+        return CompilePropertiesCache.get(configFile);
+    }
+
+    /**
+     * Forgets every configuration cached by {@link #compilePropertiesCached}.
+     */
+    public static void clearCompilePropertiesCache() {
+        CompilePropertiesCache.clear();
+    }
+
     /**
      * Instantiates a new builder using information in the given compilation configuration file.
      * The given file is interpreted as an Apache Commons Configuration properties file.
@@ -196,20 +291,43 @@ final public class CompilationTaskBuilder {
         return newBuilder(compileProperties(configFile));
     }
 
+    /**
+     * When at least this many classes in the class list are in one package, that package's source
+     * files are listed, rather than each class being looked up on its own.
+     */
+    private static final int LIST_PACKAGE_THRESHOLD = 8;
+
     private boolean isBuilt = false;
 
-    private List<Processor> processors = new ArrayList<>();
+    private List<ProcessorFactory> processors = new ArrayList<>();
+    private List<TaskListener> taskListeners = new ArrayList<>();
     private List<JavaFileObject> compilationUnits = new ArrayList<>();
     private List<String> options = new ArrayList<>();
     private List<String> classes = new ArrayList<>();
+    private List<String> packages = new ArrayList<>();
+    private List<String> recursivePackages = new ArrayList<>();
+    private List<String> sourceGlobs = new ArrayList<>();
     private DiagnosticListener<? super JavaFileObject> diagnostic = null;
+    private int resultDiagnosticLimit = Integer.MAX_VALUE;
     private StandardJavaFileManagerConfig fileManagerConfig = new StandardJavaFileManagerConfig();
+    private StandardJavaFileManagerPool fileManagerPool = null;
+    private JavaCompilerSource compilerSource = null;
+    private InMemoryOutput inMemoryOutput = null;
+    private boolean incremental = false;
+    private CompilationCache compilationCache = null;
 
     /**
      * Builds and returns a {@link CompilationTask} which is as specified by preceding calls to
      * the builder's methods. This can only be called once. Note that this consumes/re-initializes
      * the currently-set file manager config.
      *
+     * <p>Unless the task is {@link #setIncremental incremental} or uses a
+     * {@link #setCompilationCache compilation cache}, it is the compiler's own task, so javac's
+     * task can be cast to {@link com.sun.source.util.JavacTask}. Its file manager is then not
+     * closed when the task has been called; use {@link #compile()} for a task which cleans up.
+     *
+     * <p>To create many tasks from a single specification, use {@link #buildTemplate()} instead.
+     *
      * @return A {@link CompilationTask} as specified by preceeding calls to the builder's methods.
      *
      * @throws IllegalStateException
@@ -232,12 +350,165 @@ final public class CompilationTaskBuilder {
             String msg = "`CompilationTaskBuilder.build()` can only be called once.";
             throw new IllegalStateException(msg);
         } else {
-            CompilationTask task = buildTask();
+            CompilationTask task = buildTemplate().newUnwrappedTask();
+            fileManagerConfig.reInit();
             finish();
             return task;
         }
     }
 
+    /**
+     * Builds a {@link CompilationTask} just as {@link #build()} does, and then calls it. Like
+     * {@link #build()}, this can only be called once.
+     *
+     * <p>Unlike calling the task directly, this returns all of the outcome of the compilation in
+     * one immutable result: whether it succeeded, its diagnostics, the files which it produced,
+     * and its costs (e.g. its elapsed time and allocations). The diagnostics are still also given
+     * to the builder's diagnostic listener, if one has been set. If calling the task throws an
+     * exception (e.g. because some processor threw one), then it is the result's failure.
+     *
+     * @return The result of the compilation.
+     *
+     * @throws IllegalStateException
+     *            If this has been called before, or if {@link #build()} has been called.
+     * @throws IllegalStateException
+     *            If there are no compilation units to process and/or compile.
+     * @throws IOException
+     *            If the as-configured file manager cannot find some source file for some class
+     *            to-be-compiled.
+     *
+     * @see CompilationResult
+     */
+    public CompilationResult compile() throws IOException {
+        return compile(null);
+    }
+
+    /**
+     * Compiles just as {@link #compile()} does, except that if the builder has neither a file
+     * manager pool nor a compiler source, then the task leases its file manager from the given
+     * pool (if it is non-null). The builder's own settings are not changed.
+     */
+    CompilationResult compile(StandardJavaFileManagerPool defaultPool) throws IOException {
+        CompilationMeter meter = CompilationMeter.start();
+        return consume("compile()", defaultPool).compile(meter);
+    }
+
+    /**
+     * Builds the compilation task just as {@link #compile()} does, but then calls it on the given
+     * executor. The sources are still resolved on the calling thread, but the task is created and
+     * called asynchronously. Note that the result's costs do not include the cost of building.
+     *
+     * <p>The compilation can be cancelled by cancelling the returned future. See
+     * {@link CompilationTaskTemplate#compileAsync(Executor)} for how cancellation works.
+     *
+     * @param  executor The executor on which the task is to be created and called.
+     * @return A future of the result of the compilation.
+     *
+     * @throws IllegalStateException
+     *            If the builder has already been consumed, or if there are no compilation units.
+     * @throws IOException
+     *            If the as-configured file manager cannot find some source file for some class
+     *            to-be-compiled.
+     *
+     * @see CompilationTaskTemplate#compileAsync(Executor)
+     */
+    public CompletableFuture<CompilationResult> compileAsync(Executor executor)
+                                                                        throws IOException {
+        assert executor != null;
+        return consume("compileAsync()", null).compileAsync(executor);
+    }
+
+    /**
+     * Like {@link #compileAsync(Executor)}, except that if the compilation has not finished within
+     * the given time, then the returned future is completed exceptionally with a
+     * {@link java.util.concurrent.TimeoutException}, and the compilation is cancelled. A running
+     * compilation which cannot be aborted (i.e. not by javac) is not timed out; see
+     * {@link CompilationTaskTemplate#compileAsync(Executor, long, TimeUnit)}.
+     *
+     * @param  executor The executor on which the task is to be created and called.
+     * @param  timeout  The longest time which the compilation may take.
+     * @param  unit     The unit of the timeout.
+     * @return A future of the result of the compilation.
+     *
+     * @throws IllegalStateException
+     *            If the builder has already been consumed, or if there are no compilation units.
+     * @throws IOException
+     *            If the as-configured file manager cannot find some source file for some class
+     *            to-be-compiled.
+     *
+     * @see CompilationTaskTemplate#compileAsync(Executor, long, TimeUnit)
+     */
+    public CompletableFuture<CompilationResult> compileAsync(Executor executor, long timeout,
+                                                             TimeUnit unit) throws IOException {
+        assert executor != null;
+        assert unit != null;
+        return consume("compileAsync()", null).compileAsync(executor, timeout, unit);
+    }
+
+    /**
+     * Builds a template, and then consumes the builder just as {@link #build()} does.
+     *
+     * @param method      The name of the consuming method, for the error message.
+     * @param defaultPool The pool to be used if the builder has neither a pool nor a compiler
+     *                    source, or {@code null}.
+     */
+    private CompilationTaskTemplate consume(String method,
+                                            StandardJavaFileManagerPool defaultPool)
+                                                                        throws IOException {
+        if (isBuilt) {
+            String msg = "`CompilationTaskBuilder." + method + "` can only be called once.";
+            throw new IllegalStateException(msg);
+        }
+        StandardJavaFileManagerPool pool = (fileManagerPool == null && compilerSource == null)
+                ? defaultPool
+                : fileManagerPool;
+        CompilationTaskTemplate template = buildTaskTemplate(pool);
+        fileManagerConfig.reInit();
+        finish();
+        return template;
+    }
+
+    /**
+     * Builds and returns a {@link CompilationTaskTemplate} which is as specified by preceding
+     * calls to the builder's methods. The template can then be used to create any number of
+     * independent {@link CompilationTask}s.
+     *
+     * <p>Unlike {@link #build()}, this may be called any number of times, and it neither consumes
+     * the builder nor its file manager config: the template takes a snapshot of the builder's
+     * current state, so later changes to the builder are not visible to the template.
+     *
+     * <p>The class names added via {@link #addClass} are resolved against the source path once,
+     * while the template is being built, rather than once per task.
+     *
+     * <p>Note that a {@link Processor} instance added via {@link #addProc(Processor)} will be
+     * shared by every task created from the template. Since processors are generally stateful,
+     * (e.g. {@link javax.annotation.processing.AbstractProcessor#init} can only be called once),
+     * processors which are to be used by multiple tasks should be added with
+     * {@link #addProcFactory(Supplier)} instead.
+     *
+     * <p>Unless the builder has a file manager pool, the template keeps the file manager which it
+     * used to resolve the compilation units, for its first task. A template which might be
+     * dropped before creating any task should therefore be {@link CompilationTaskTemplate#close()
+     * closed}.
+     *
+     * @return A new template as specified by the builder's current state.
+     *
+     * @throws IllegalStateException
+     *            If the builder has already been consumed by {@link #build()}.
+     * @throws IllegalStateException
+     *            If there are no compilation units to process and/or compile.
+     * @throws IOException
+     *            If the as-configured file manager cannot find some source file for some class
+     *            to-be-compiled.
+     */
+    public CompilationTaskTemplate buildTemplate() throws IOException {
+        if (isBuilt) {
+            String msg = "`CompilationTaskBuilder` has already been consumed by `build()`.";
+            throw new IllegalStateException(msg);
+        }
+        return buildTaskTemplate(fileManagerPool);
+    }
+
     /**
      * The given {@link Processor annotation processor} instance will be used during the compilation
      * task.
@@ -253,7 +524,55 @@ final public class CompilationTaskBuilder {
      */
     public CompilationTaskBuilder addProc(Processor proc) {
         assert proc != null;
-        processors.add(proc);
+        processors.add(new ProcessorFactory(() -> proc, proc.getClass().getName()));
+        return this;
+    }
+
+    /**
+     * The given factory will be used to create a new {@link Processor annotation processor}
+     * instance for each compilation task created by the builder (or by a template built by it).
+     *
+     * <p>This is preferable to {@link #addProc(Processor)} whenever more than one task is to be
+     * made from a single builder via {@link #buildTemplate()}.
+     *
+     * @param  factory A factory which makes a new processor instance each time it is called.
+     * @return The receiver instance (i.e. {@code this}).
+     *
+     * @see CompilationTaskBuilder#addProc(Processor)
+     */
+    public CompilationTaskBuilder addProcFactory(Supplier<? extends Processor> factory) {
+        assert factory != null;
+        processors.add(new ProcessorFactory(factory, null));
+        return this;
+    }
+
+    /**
+     * Adds a processor factory just as {@link #addProcFactory(Supplier)} does, except that the
+     * factory's processors are identified by the given key in the keys of a
+     * {@link #setCompilationCache compilation cache}, rather than by their class name.
+     *
+     * <p>A key is required for processors whose outputs are not determined by their class, e.g. a
+     * {@link UniversalProcessor} wrapping some lambda. Two factories should only be given the same
+     * key if their processors always produce the same outputs from the same inputs. A key should
+     * be changed whenever the processors' behavior changes.
+     *
+     * @param  factory  A factory which makes a new processor instance each time it is called.
+     * @param  cacheKey The key which identifies the factory's processors.
+     * @return The receiver instance (i.e. {@code this}).
+     *
+     * @see CompilationCache
+     */
+    public CompilationTaskBuilder addProcFactory(Supplier<? extends Processor> factory,
+                                                 String cacheKey) {
+        assert factory != null;
+        assert cacheKey != null;
+        processors.add(new ProcessorFactory(factory, null, cacheKey));
+        return this;
+    }
+
+    private CompilationTaskBuilder addProcFactory(Class<? extends Processor> processorClass,
+                                                  Supplier<? extends Processor> factory) {
+        processors.add(new ProcessorFactory(factory, processorClass.getName()));
         return this;
     }
 
@@ -271,7 +590,7 @@ final public class CompilationTaskBuilder {
      */
     public CompilationTaskBuilder addProc(BiConsumer<ProcessingEnvironment, RoundEnvironment> task) {
         assert task != null;
-        addProc(new UniversalProcessor(task));
+        addProcFactory(UniversalProcessor.class, () -> new UniversalProcessor(task));
         return this;
     }
 
@@ -290,17 +609,107 @@ final public class CompilationTaskBuilder {
      */
     public CompilationTaskBuilder addProc(Consumer<CompilationUnitTree> task) {
         assert task != null;
-        addProc(new CompilationUnitsProcessor(task));
+        addProcFactory(CompilationUnitsProcessor.class, () -> new CompilationUnitsProcessor(task));
+        return this;
+    }
+
+    /**
+     * A new {@link AnnotationsProcessor} with the given annotation types and task will be used
+     * during the compilation task. Its supported source version is
+     * {@link SourceVersion#latestSupported()}. This is just a helper for calling
+     * {@link #addProc(Processor)}, so see that method for details.
+     *
+     * <p>Unlike the other {@code addProc()} helpers, the processor added by this method does not
+     * claim all annotation types, so javac can skip it in compilations (and in rounds) in which
+     * none of the given annotation types are used.
+     *
+     * @param  annotationTypes The names of the annotation types whose elements the task is to be
+     *                         given.
+     * @param  task            A task to be performed in each round in which some elements are
+     *                         annotated with any of the annotation types; in each such round,
+     *                         this task will be invoked with the current processing environment
+     *                         and those elements.
+     * @return The receiver instance (i.e. {@code this}).
+     *
+     * @see CompilationTaskBuilder#addProc(Processor)
+     * @see AnnotationsProcessor
+     */
+    public CompilationTaskBuilder addProc(Collection<String> annotationTypes,
+                                          BiConsumer<ProcessingEnvironment, Set<Element>> task) {
+        assert annotationTypes != null;
+        assert task != null;
+        List<String> types = new ArrayList<>(annotationTypes);
+        SourceVersion version = SourceVersion.latestSupported();
+        addProcFactory(AnnotationsProcessor.class,
+                       () -> new AnnotationsProcessor(types, version, task));
         return this;
     }
 
+    /**
+     * The given listener will be added to the underlying {@link com.sun.source.util.JavacTask},
+     * and so it will be notified as each compilation unit is parsed, entered, analyzed and
+     * generated. Unlike a processor, a listener sees attributed trees (after an
+     * {@link TaskEvent.Kind#ANALYZE ANALYZE} event), and it doesn't need annotation processing to
+     * be run at all. So, a task with listeners but no processors has no processing rounds. (See
+     * also {@link #addProcNoneOption()}.)
+     *
+     * <p>Listeners are added in order, after the task's processors have been set. Note that a
+     * listener is shared by every task created from a template, just like a processor added via
+     * {@link #addProc(Processor)}. Note also that when a task's outputs are restored from a
+     * {@link #setCompilationCache compilation cache}, javac is not run, so no events are reported.
+     *
+     * <p>By default, a task has no listeners.
+     *
+     * @param  listener The listener to be added to the compilation task.
+     * @return The receiver instance (i.e. {@code this}).
+     *
+     * @throws IllegalStateException
+     *            When a task is created, if the compiler is not javac.
+     */
+    public CompilationTaskBuilder addTaskListener(TaskListener listener) {
+        assert listener != null;
+        taskListeners.add(listener);
+        return this;
+    }
+
+    /**
+     * The given action will be performed each time some compilation unit (or class) has
+     * <em>finished</em> the given phase. This is just a helper for calling
+     * {@link #addTaskListener(TaskListener)}, so see that method for details.
+     *
+     * <p>For example, a type-aware lint pass can be run on each class once it has been attributed
+     * by adding an action for {@link TaskEvent.Kind#ANALYZE}.
+     *
+     * @param  kind   The kind of the events to which the action is to be applied.
+     * @param  action The action to be applied to each such event.
+     * @return The receiver instance (i.e. {@code this}).
+     *
+     * @see CompilationTaskBuilder#addTaskListener(TaskListener)
+     */
+    public CompilationTaskBuilder addTaskListener(TaskEvent.Kind kind, Consumer<TaskEvent> action) {
+        assert kind != null;
+        assert action != null;
+        return addTaskListener(new TaskListener() {
+            @Override
+            public void started(TaskEvent e) { }
+
+            @Override
+            public void finished(TaskEvent e) {
+                if (e.getKind() == kind) {
+                    action.accept(e);
+                }
+            }
+        });
+    }
+
     /**
      * Set the {@link StandardJavaFileManagerConfig} instance to be used to configure the
      * compilation task's file manager.
      *
      * <p>If this method is never called with a config, then the default behavior is to use a null-
      * {@link StandardJavaFileManagerConfig}, that is, one which sets each {@link StandardLocation}
-     * to {@code null}.
+     * to {@code null}. (Locations added after Java 8, e.g. the module locations, are instead left
+     * as they are unless they have been given some files.)
      *
      * <p>The compilation task will obtain and configure a file manager obtained from
      * {@link JavaCompiler#getStandardFileManager}. Note that depending on the environment,
@@ -323,6 +732,75 @@ final public class CompilationTaskBuilder {
         return this;
     }
 
+    /**
+     * Set the {@link StandardJavaFileManagerPool} from which the compilation task's file manager is
+     * to be leased. Each task will lease a file manager configured as specified by the
+     * currently-set file manager config, and the lease will be closed once the task has been
+     * called.
+     *
+     * <p>If this method is never called with a pool, then the default behavior is to obtain a new
+     * file manager for each task. Passing {@code null} restores this default.
+     *
+     * <p>Note that pooled file managers are not given the builder's diagnostic listener, though the
+     * compilation task itself still is.
+     *
+     * @param  pool The pool from which file managers are to be leased.
+     * @return The receiver instance (i.e. {@code this}).
+     */
+    public CompilationTaskBuilder setFileManagerPool(StandardJavaFileManagerPool pool) {
+        fileManagerPool = pool;
+        return this;
+    }
+
+    /**
+     * @return The currently-set file manager pool, or {@code null} if none has been set.
+     */
+    public StandardJavaFileManagerPool getFileManagerPool() {
+        return fileManagerPool;
+    }
+
+    /**
+     * Set the source of the {@link JavaCompiler} from which compilation tasks are to be created.
+     * The source's compiler is looked up when the builder is built, so one source can be shared
+     * by any number of builders, and its compiler is only looked up once.
+     *
+     * <p>If a {@link #setFileManagerPool file manager pool} is also set, then its compiler must be
+     * the source's compiler, since a file manager may only be used by the compiler which made it.
+     *
+     * <p>If this method is never called with a source, then the default behavior is to use the
+     * pool's compiler if a pool is set, or else {@link JavaCompilerSource#system()}. Passing
+     * {@code null} restores this default.
+     *
+     * @param  source The source of the compiler to be used.
+     * @return The receiver instance (i.e. {@code this}).
+     *
+     * @see JavaCompilerSource
+     */
+    public CompilationTaskBuilder setCompilerSource(JavaCompilerSource source) {
+        compilerSource = source;
+        return this;
+    }
+
+    /**
+     * Set the {@link JavaCompiler} from which compilation tasks are to be created. This is just a
+     * helper for calling {@link #setCompilerSource} with {@link JavaCompilerSource#of}, so see that
+     * method for details.
+     *
+     * @param  compiler The compiler to be used.
+     * @return The receiver instance (i.e. {@code this}).
+     */
+    public CompilationTaskBuilder setCompiler(JavaCompiler compiler) {
+        assert compiler != null;
+        return setCompilerSource(JavaCompilerSource.of(compiler));
+    }
+
+    /**
+     * @return The currently-set compiler source, or {@code null} if none has been set.
+     */
+    public JavaCompilerSource getCompilerSource() {
+        return compilerSource;
+    }
+
     /**
      * @return The currently-set config instance.
      */
@@ -357,6 +835,46 @@ final public class CompilationTaskBuilder {
         return this;
     }
 
+    /**
+     * All of the source files of the given package will be compiled during the compilation task.
+     * These source files will be found by scanning each directory on the source path when
+     * {@link #build} is called. (Where two directories have a source file for the same class, only
+     * the file in the earlier directory is compiled.)
+     *
+     * <p>If no source file is found in the package (or in any of its subpackages, if recursive),
+     * then building the task fails.
+     *
+     * @param  pkg       The fully qualified name of the package, or the empty string for the
+     *                   unnamed package.
+     * @param  recursive Whether the source files of all subpackages of the package will also be
+     *                   compiled.
+     * @return The receiver instance (i.e. {@code this}).
+     */
+    public CompilationTaskBuilder addPackage(String pkg, boolean recursive) {
+        assert pkg != null;
+        (recursive ? recursivePackages : packages).add(pkg);
+        return this;
+    }
+
+    /**
+     * All of the source files on the source path which match the given glob will be compiled
+     * during the compilation task. The glob is matched against each source file's path relative to
+     * its source path directory, e.g. <code>"com/example/**&#47;*Impl.java"</code>. See
+     * {@link java.nio.file.FileSystem#getPathMatcher} for the glob syntax. Only files ending in
+     * ".java" are ever matched.
+     *
+     * <p>All packages and globs are resolved in a single scan of the source path when
+     * {@link #build} is called. If the glob matches no source file, then building the task fails.
+     *
+     * @param  glob The glob selecting source files to be compiled.
+     * @return The receiver instance (i.e. {@code this}).
+     */
+    public CompilationTaskBuilder addSourceGlob(String glob) {
+        assert glob != null;
+        sourceGlobs.add(glob);
+        return this;
+    }
+
     /**
      * Adds a single compiler option to be passed to the compilation task. Note that options will
      * be passed to the compiler in the order that they were passed to this method or
@@ -411,6 +929,98 @@ final public class CompilationTaskBuilder {
         return this;
     }
 
+    /**
+     * The given source code will be compiled during the compilation task. The source code is kept
+     * in memory, so it need not be written to any file. This is just a helper for calling
+     * {@link #addCompilationUnit(JavaFileObject)} with a {@link CharSequenceSource}.
+     *
+     * @param  className The fully-qualified name of the top-level class declared by the code.
+     * @param  code      The contents of the compilation unit to be added.
+     * @return The receiver instance (i.e. {@code this}).
+     */
+    public CompilationTaskBuilder addSource(String className, CharSequence code) {
+        assert className != null;
+        assert code != null;
+        addCompilationUnit(new CharSequenceSource(className, code));
+        return this;
+    }
+
+    /**
+     * Everything which the compilation task writes to its {@code CLASS_OUTPUT} and
+     * {@code SOURCE_OUTPUT} locations will be kept in memory in the given container, rather than
+     * being written to disk. Any output directories set in the file manager config are then
+     * ignored. See {@link InMemoryJavaFileManager} for details.
+     *
+     * <p>By default, outputs are written to disk as specified by the file manager config. Passing
+     * {@code null} restores this default.
+     *
+     * @param  output The container into which the compilation task's outputs will be written.
+     * @return The receiver instance (i.e. {@code this}).
+     *
+     * @see CompilationTaskTemplate#newTask(InMemoryOutput)
+     */
+    public CompilationTaskBuilder setInMemoryOutput(InMemoryOutput output) {
+        inMemoryOutput = output;
+        return this;
+    }
+
+    /**
+     * <p>Sets whether the compilation task will be incremental. An incremental task only compiles
+     * those of its compilation units which have changed since the last successful incremental
+     * compilation into the same class output directory, along with any units which (transitively)
+     * depend upon them. If nothing has changed, then the task does nothing when called.
+     *
+     * <p>A compilation unit is considered to have changed if its size or modification time differ
+     * from those which were recorded <em>and</em> its content hash also differs, or if any class
+     * file which was generated from it is missing. Units which are not files (e.g. those added via
+     * {@link #addSource}) are always compiled. A record of each unit's hash, generated class files,
+     * and dependencies is kept in the class output directory, in a file named
+     * {@value IncrementalCompilation#STATE_FILE_NAME}.
+     *
+     * <p>In order that units which are not recompiled can still be referenced, the class output
+     * directory is added to the class path of an incremental task.
+     *
+     * <p>An incremental task requires that the class output directory has been set in the file
+     * manager config, that no in-memory output is set, and that the system compiler is javac.
+     * Note that processors only see the units which are actually recompiled, and that files
+     * generated into the source output directory are not tracked.
+     *
+     * <p>By default, compilation tasks are not incremental.
+     *
+     * @param  incremental Whether the compilation task should be incremental.
+     * @return The receiver instance (i.e. {@code this}).
+     */
+    public CompilationTaskBuilder setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        return this;
+    }
+
+    /**
+     * <p>The compilation task will look up its outputs in the given cache before running javac. If
+     * an identical compilation has already succeeded, then its class and source output files are
+     * copied into the task's output directories, and the task reports success without compiling
+     * anything. Otherwise, the task is compiled as usual, and if it succeeds, then its outputs are
+     * added to the cache. See {@link CompilationCache} for what makes two compilations identical.
+     *
+     * <p>Note that when the outputs are restored from the cache, no processors are run and no
+     * diagnostics are reported. Processors are identified in cache keys by their class names, so
+     * processors which wrap a lambda (e.g. those added via the {@code addProc()} helpers) must
+     * instead be added with an explicit key via {@link #addProcFactory(Supplier, String)}.
+     *
+     * <p>A task with a cache requires that the class output directory has been set in the file
+     * manager config, and that no in-memory output is set. A cache cannot be combined with
+     * {@link #setIncremental incremental} compilation.
+     *
+     * <p>By default, no compilation cache is used.
+     *
+     * @param  compilationCache The cache to be used, or {@code null} to use none.
+     * @return The receiver instance (i.e. {@code this}).
+     */
+    public CompilationTaskBuilder setCompilationCache(CompilationCache compilationCache) {
+        this.compilationCache = compilationCache;
+        return this;
+    }
+
     /**
      * The compilation task will be processing-only (i.e. "-proc:only" is added as an option).
      *
@@ -423,6 +1033,22 @@ final public class CompilationTaskBuilder {
         return this;
     }
 
+    /**
+     * The compilation task will not run annotation processing (i.e. "-proc:none" is added as an
+     * option), not even processors which javac would find on the processor path.
+     *
+     * <p>Note that this also disables any processors which have been added to the builder. This is
+     * meant for tasks whose analyses are all done by {@link #addTaskListener task listeners}.
+     *
+     * <p>By default, this option is not passed.
+     *
+     * @return The receiver instance (i.e. {@code this}).
+     */
+    public CompilationTaskBuilder addProcNoneOption() {
+        options.add("-proc:none");
+        return this;
+    }
+
     /**
      * The compilation task and its file manager will use the given diagnostic listener to report
      * their notes, warnings, errors, etc.
@@ -439,39 +1065,183 @@ final public class CompilationTaskBuilder {
         return this;
     }
 
-    private CompilationTask buildTask() throws IOException {
-        // Configure the compiler itself and its file manager.
-        JavaCompiler compiler = getSystemJavaCompiler();
-        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostic,
-                                                                              null, null);
-        fileManagerConfig.config(fileManager);
+    /**
+     * @return The currently-set diagnostic listener, or {@code null} if none has been set.
+     */
+    public DiagnosticListener<? super JavaFileObject> getDiagnosticListener() {
+        return diagnostic;
+    }
 
-        // Use the file manager and the class list to get the compilation units to be compiled.
-        for (String c : classes) {
-            JavaFileObject srcFile = fileManager.getJavaFileForInput(SOURCE_PATH, c, SOURCE);
-            if (srcFile == null) {
-                throw new IOException("No such class found on the source path: " + c);
+    /**
+     * <p>Caps the number of diagnostics of each kind (e.g. errors or warnings) which are kept in
+     * the {@link CompilationResult} of {@link #compile()} (and of the template's
+     * {@link CompilationTaskTemplate#compile() compile()}). Diagnostics beyond the cap are still
+     * counted and still given to the builder's diagnostic listener, but they are not kept. This
+     * is meant for compilations which may report very many warnings.
+     *
+     * <p>By default, every diagnostic is kept.
+     *
+     * @param  limitPerKind The most diagnostics of each kind which are to be kept.
+     * @return The receiver instance (i.e. {@code this}).
+     *
+     * @throws IllegalArgumentException If the limit is negative.
+     *
+     * @see me.dwtj.java.compiler.utils.diag.BoundedDiagnosticCollector
+     */
+    public CompilationTaskBuilder setResultDiagnosticLimit(int limitPerKind) {
+        if (limitPerKind < 0) {
+            String msg = "Negative diagnostic limit: " + limitPerKind;
+            throw new IllegalArgumentException(msg);
+        }
+        this.resultDiagnosticLimit = limitPerKind;
+        return this;
+    }
+
+    /** Builds a template whose tasks lease their file managers from the given pool (if any). */
+    private CompilationTaskTemplate buildTaskTemplate(StandardJavaFileManagerPool pool)
+                                                                        throws IOException {
+        // Snapshot the file manager config so that the template is unaffected by later mutation.
+        JavaCompiler compiler = resolveCompiler(pool);
+        StandardJavaFileManagerConfig locations = makeConfig(fileManagerConfig);
+
+        // Use a file manager, the class list, and the selections to resolve the compilation units
+        // to be compiled. When not pooled, this file manager is then handed to the template for its
+        // first task.
+        List<JavaFileObject> units = new ArrayList<>(compilationUnits);
+        StandardJavaFileManager fileManager = null;
+        SourceSelector selector = new SourceSelector(packages, recursivePackages, sourceGlobs);
+        if (!classes.isEmpty() || !selector.isEmpty()) {
+            if (pool == null) {
+                fileManager = compiler.getStandardFileManager(diagnostic, null, null);
+                try {
+                    locations.apply(fileManager);
+                    resolveSources(fileManager, selector, units);
+                } catch (IOException | RuntimeException ex) {
+                    fileManager.close();
+                    throw ex;
+                }
             } else {
-                compilationUnits.add(srcFile);
+                try (StandardJavaFileManagerPool.Lease lease = pool.acquire(locations)) {
+                    resolveSources(lease.getFileManager(), selector, units);
+                }
             }
         }
 
-        // Configure the compilation task itself.
-        if (compilationUnits.isEmpty()) {
-            String msg = "CompilationTaskBuilder: No compilation units have been added.";
+        String msg = null;
+        if (units.isEmpty()) {
+            msg = "CompilationTaskBuilder: No compilation units have been added.";
+        } else if (compilationCache != null && incremental) {
+            msg = "CompilationTaskBuilder: A compilation cache cannot be incremental.";
+        }
+        if (msg != null) {
+            if (fileManager != null) {
+                fileManager.close();
+            }
             throw new IllegalStateException(msg);
         }
-        CompilationTask task = compiler.getTask(
-                null,             // TODO: Support user-defined writer.
-                fileManager,
-                diagnostic,
-                options,          // TODO: Support more user-defined options.
-                null,             // TODO: Support user-defined classes.
-                compilationUnits
-        );
-        task.setProcessors(processors);
+        return new CompilationTaskTemplate(compiler, locations, pool, inMemoryOutput, diagnostic,
+                                           resultDiagnosticLimit, options, processors,
+                                           taskListeners, units,
+                                           incremental, compilationCache, fileManager);
+    }
 
-        return task;
+    /**
+     * @return The compiler of the compiler source, or else of the given pool, or else of the
+     *         system.
+     *
+     * @throws IllegalStateException If the compiler source and the pool have different compilers.
+     */
+    private JavaCompiler resolveCompiler(StandardJavaFileManagerPool pool) {
+        if (compilerSource == null) {
+            return (pool == null) ? JavaCompilerSource.system().get() : pool.getCompiler();
+        }
+        JavaCompiler compiler = compilerSource.get();
+        if (pool != null && pool.getCompiler() != compiler) {
+            String msg = "CompilationTaskBuilder: The file manager pool's compiler is not the "
+                       + "compiler of " + compilerSource;
+            throw new IllegalStateException(msg);
+        }
+        return compiler;
+    }
+
+    /**
+     * Adds the source files of the class list and then those selected by package or glob (except
+     * for any which are already in the class list) to the given units.
+     */
+    private void resolveSources(StandardJavaFileManager fileManager,
+                                SourceSelector selector,
+                                List<JavaFileObject> units) throws IOException {
+        resolveClasses(fileManager, units);
+        if (selector.isEmpty()) {
+            return;
+        }
+        Iterable<? extends File> sourcePath = fileManager.getLocation(SOURCE_PATH);
+        if (sourcePath == null) {
+            sourcePath = emptyList();
+        }
+        Set<String> listed = new HashSet<>(classes);
+        List<File> selected = new ArrayList<>();
+        for (Map.Entry<String, File> entry : selector.select(sourcePath).entrySet()) {
+            if (!listed.contains(entry.getKey())) {
+                selected.add(entry.getValue());
+            }
+        }
+        fileManager.getJavaFileObjectsFromFiles(selected).forEach(units::add);
+    }
+
+    /**
+     * Finds the source file of each class in the class list, and adds them to the given units in
+     * the same order. Every class is looked up before any failure is reported, so that all of the
+     * missing classes are named in a single exception.
+     */
+    private void resolveClasses(StandardJavaFileManager fileManager, List<JavaFileObject> units)
+                                                                            throws IOException {
+        // Group the classes by package, so that each package which has many classes in the list is
+        // listed once, rather than each of its classes being probed for on every source path root.
+        Map<String, List<String>> byPackage = new HashMap<>();
+        for (String c : classes) {
+            byPackage.computeIfAbsent(packageOf(c), pkg -> new ArrayList<>()).add(c);
+        }
+        Map<String, JavaFileObject> found = new HashMap<>();
+        for (Map.Entry<String, List<String>> pkg : byPackage.entrySet()) {
+            if (pkg.getValue().size() < LIST_PACKAGE_THRESHOLD) {
+                for (String c : pkg.getValue()) {
+                    JavaFileObject srcFile = fileManager.getJavaFileForInput(SOURCE_PATH, c,
+                                                                             SOURCE);
+                    if (srcFile != null) {
+                        found.put(c, srcFile);
+                    }
+                }
+            } else {
+                // The listing follows the order of the source path, so (just as with a lookup) the
+                // first root which has some class wins.
+                for (JavaFileObject srcFile : fileManager.list(SOURCE_PATH, pkg.getKey(),
+                                                               EnumSet.of(SOURCE), false)) {
+                    found.putIfAbsent(fileManager.inferBinaryName(SOURCE_PATH, srcFile), srcFile);
+                }
+            }
+        }
+
+        List<String> missing = new ArrayList<>();
+        for (String c : classes) {
+            JavaFileObject srcFile = found.get(c);
+            if (srcFile == null) {
+                missing.add(c);
+            } else {
+                units.add(srcFile);
+            }
+        }
+        if (!missing.isEmpty()) {
+            String msg = (missing.size() == 1)
+                    ? "No such class found on the source path: " + missing.get(0)
+                    : missing.size() + " classes not found on the source path: " + missing;
+            throw new IOException(msg);
+        }
+    }
+
+    private static String packageOf(String className) {
+        int dot = className.lastIndexOf('.');
+        return (dot < 0) ? "" : className.substring(0, dot);
     }
 
     /** Sets `isBuilt` to true, and sets all fields to `null` for garbage collection. */
@@ -482,6 +1252,9 @@ final public class CompilationTaskBuilder {
         options = null;
         diagnostic = null;
         fileManagerConfig = null;
+        fileManagerPool = null;
+        inMemoryOutput = null;
+        compilationCache = null;
     }
 
 
@@ -495,6 +1268,15 @@ final public class CompilationTaskBuilder {
      */
     public static class StandardJavaFileManagerConfig {
 
+        /**
+         * The locations of Java 8, each of which a config sets (possibly to {@code null}, which
+         * restores the file manager's default). Any other locations are only set if the config
+         * has some files for them.
+         */
+        private static final Set<StandardLocation> RESETTABLE_LOCATIONS = unmodifiableSet(
+                EnumSet.of(CLASS_OUTPUT, SOURCE_OUTPUT, CLASS_PATH, SOURCE_PATH,
+                           ANNOTATION_PROCESSOR_PATH, PLATFORM_CLASS_PATH, NATIVE_HEADER_OUTPUT));
+
         private EnumMap<StandardLocation, List<File>> locations;
 
         /**
@@ -694,7 +1476,37 @@ final public class CompilationTaskBuilder {
         }
 
         /**
-         * Configures the given file manager, and then re-initializes the config instance.
+         * @return An immutable copy of the config's location information, suitable for use as a
+         *         key. Two configs which would configure a file manager in the same way will have
+         *         equal snapshots.
+         */
+        Map<StandardLocation, List<File>> snapshot() {
+            Map<StandardLocation, List<File>> copy = new EnumMap<>(StandardLocation.class);
+            locations.forEach((l, files) -> {
+                if (files != null) {
+                    copy.put(l, unmodifiableList(new ArrayList<>(files)));
+                }
+            });
+            return unmodifiableMap(copy);
+        }
+
+        /**
+         * @return Like {@link #snapshot()}, except without the output locations. Two configs which
+         *         differ only in where a compilation's outputs are written have equal snapshots.
+         */
+        Map<StandardLocation, List<File>> inputSnapshot() {
+            Map<StandardLocation, List<File>> copy = new EnumMap<>(StandardLocation.class);
+            snapshot().forEach((l, files) -> {
+                if (!l.isOutputLocation()) {
+                    copy.put(l, files);
+                }
+            });
+            return unmodifiableMap(copy);
+        }
+
+        /**
+         * Configures only the output locations of the given file manager, without re-initializing
+         * the config instance. Those output locations which this config does not set are reset.
          *
          * @param  fileManager The standard file manager instance to-be-configured.
          * @return The now-configured file manager instance which was just passed in.
@@ -703,12 +1515,53 @@ final public class CompilationTaskBuilder {
          *            if the config attempted to set some output location to a path which does not
          *            represent an existing directory
          */
-        public StandardJavaFileManager config(StandardJavaFileManager fileManager)
-                                                                throws IOException {
+        StandardJavaFileManager applyOutputs(StandardJavaFileManager fileManager)
+                                                                        throws IOException {
+            assert fileManager != null;
+            for (StandardLocation l : RESETTABLE_LOCATIONS) {
+                if (l.isOutputLocation()) {
+                    fileManager.setLocation(l, locations.get(l));
+                }
+            }
+            return fileManager;
+        }
+
+        /**
+         * Configures the given file manager without re-initializing the config instance.
+         *
+         * @param  fileManager The standard file manager instance to-be-configured.
+         * @return The now-configured file manager instance which was just passed in.
+         *
+         * @throws IOException
+         *            if the config attempted to set some output location to a path which does not
+         *            represent an existing directory
+         */
+        StandardJavaFileManager apply(StandardJavaFileManager fileManager) throws IOException {
             assert fileManager != null;
             for (StandardLocation l : StandardLocation.values()) {
-                fileManager.setLocation(l, locations.get(l));
+                List<File> files = locations.get(l);
+                // Newer JDKs add (module) locations which cannot be reset to `null`, so those are
+                // only set if they have been explicitly given some files.
+                if (RESETTABLE_LOCATIONS.contains(l) || files != null) {
+                    fileManager.setLocation(l, files);
+                }
             }
+            return fileManager;
+        }
+
+        /**
+         * Configures the given file manager, and then re-initializes the config instance.
+         *
+         * @param  fileManager The standard file manager instance to-be-configured.
+         * @return The now-configured file manager instance which was just passed in.
+         *
+         * @throws IOException
+         *            if the config attempted to set some output location to a path which does not
+         *            represent an existing directory
+         */
+        public StandardJavaFileManager config(StandardJavaFileManager fileManager)
+                                                                throws IOException {
+            apply(fileManager);
             reInit();
             return fileManager;
         }
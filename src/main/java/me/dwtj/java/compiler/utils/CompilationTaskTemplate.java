@@ -0,0 +1,742 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import me.dwtj.java.compiler.utils.CompilationTaskBuilder.StandardJavaFileManagerConfig;
+import me.dwtj.java.compiler.utils.diag.BoundedDiagnosticCollector;
+import me.dwtj.java.compiler.utils.mem.InMemoryJavaFileManager;
+import me.dwtj.java.compiler.utils.mem.InMemoryOutput;
+
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static java.util.Collections.unmodifiableList;
+import static javax.tools.StandardLocation.CLASS_PATH;
+
+/**
+ * A frozen specification of a {@link CompilationTask} from which any number of independent
+ * (un-called) tasks can be created. Instances are obtained via
+ * {@link CompilationTaskBuilder#buildTemplate()}.
+ *
+ * <p>All of the work which does not depend upon a particular task is done once, when the template
+ * is built. In particular, the builder's class list has already been resolved to compilation
+ * units, and the builder's file manager config has already been copied. Each call to
+ * {@link #newTask()} then only needs to obtain and configure a file manager and to ask the
+ * compiler for a new task.
+ *
+ * <p>A template is immutable, so it may be shared between threads. Note however that the
+ * {@link DiagnosticListener}, the task listeners, and any processors added as instances (rather
+ * than as factories) are shared by every task created from the template.
+ *
+ * @see CompilationTaskBuilder#buildTemplate()
+ *
+ * @author dwtj
+ */
+final public class CompilationTaskTemplate implements Closeable {
+
+    private final JavaCompiler compiler;
+    private final StandardJavaFileManagerConfig locations;
+    private final StandardJavaFileManagerPool fileManagerPool;
+    private final InMemoryOutput inMemoryOutput;
+    private final DiagnosticListener<? super JavaFileObject> diagnostic;
+    private final int resultDiagnosticLimit;
+    private final List<String> options;
+    private final List<ProcessorFactory> processors;
+    private final List<TaskListener> taskListeners;
+    private final List<JavaFileObject> compilationUnits;
+    private final boolean incremental;
+    private final CompilationCache compilationCache;
+
+    /** The compiler's default class path, found (once) if the class path is not configured. */
+    private volatile List<File> defaultClassPath;
+
+    /** A file manager left over from building the template, to be used by the first new task. */
+    private final AtomicReference<StandardJavaFileManager> unusedFileManager;
+
+    CompilationTaskTemplate(JavaCompiler compiler,
+                            StandardJavaFileManagerConfig locations,
+                            StandardJavaFileManagerPool fileManagerPool,
+                            InMemoryOutput inMemoryOutput,
+                            DiagnosticListener<? super JavaFileObject> diagnostic,
+                            int resultDiagnosticLimit,
+                            List<String> options,
+                            List<ProcessorFactory> processors,
+                            List<TaskListener> taskListeners,
+                            List<JavaFileObject> compilationUnits,
+                            boolean incremental,
+                            CompilationCache compilationCache,
+                            StandardJavaFileManager unusedFileManager) {
+        assert compiler != null;
+        assert locations != null;
+        this.compiler = compiler;
+        this.locations = locations;
+        this.fileManagerPool = fileManagerPool;
+        this.inMemoryOutput = inMemoryOutput;
+        this.diagnostic = diagnostic;
+        this.resultDiagnosticLimit = resultDiagnosticLimit;
+        this.options = unmodifiableList(new ArrayList<>(options));
+        this.processors = unmodifiableList(new ArrayList<>(processors));
+        this.taskListeners = unmodifiableList(new ArrayList<>(taskListeners));
+        this.compilationUnits = unmodifiableList(new ArrayList<>(compilationUnits));
+        this.incremental = incremental;
+        this.compilationCache = compilationCache;
+        this.unusedFileManager = new AtomicReference<>(unusedFileManager);
+    }
+
+    /**
+     * Creates a new (un-called) {@link CompilationTask} as specified by this template. Each task
+     * is given its own configured {@link StandardJavaFileManager} and its own processor instances
+     * (as made by the builder's processor factories). The task's file manager is closed once the
+     * task has been called. (A task which is never called never closes its file manager.)
+     *
+     * <p>If the builder was given a {@link StandardJavaFileManagerPool}, then the task's file
+     * manager is instead leased from that pool, and it is returned to the pool once the task has
+     * been called.
+     *
+     * <p>If the builder was given an {@link InMemoryOutput}, then the task's outputs are written to
+     * that container. Note that this container is then shared by every such task; use
+     * {@link #newTask(InMemoryOutput)} to give each task its own.
+     *
+     * <p>If the builder was made {@link CompilationTaskBuilder#setIncremental incremental}, then
+     * the task will only compile those compilation units which have changed since the last
+     * successful compilation into the same class output directory, along with their dependents.
+     *
+     * <p>If the builder was given a {@link CompilationCache}, then calling the task first looks
+     * for a cached result of an identical compilation, and if there is one, then its outputs are
+     * restored instead of running javac.
+     *
+     * @return A new compilation task.
+     *
+     * @throws IOException
+     *            If a class or source output location has been set to some file which does not
+     *            actually represent an existing directory.
+     */
+    public CompilationTask newTask() throws IOException {
+        return newTask(inMemoryOutput);
+    }
+
+    /**
+     * Creates a new (un-called) {@link CompilationTask} just as {@link #newTask()} does, except
+     * that the task's {@code CLASS_OUTPUT} and {@code SOURCE_OUTPUT} locations are kept in memory
+     * in the given container.
+     *
+     * @param  output The container to which the new task's outputs are to be written, or
+     *                {@code null} if outputs are to be written as specified by the file manager
+     *                config.
+     * @return A new compilation task.
+     *
+     * @throws IOException
+     *            If a class or source output location has been set to some file which does not
+     *            actually represent an existing directory.
+     *
+     * @throws IllegalStateException
+     *            If the template is incremental or uses a compilation cache, and an in-memory
+     *            output is given.
+     *
+     * @see InMemoryJavaFileManager
+     */
+    public CompilationTask newTask(InMemoryOutput output) throws IOException {
+        return newTask(output, null);
+    }
+
+    /**
+     * Creates a new task as specified by this template, and then calls it.
+     *
+     * @return The result of the call, including the task's diagnostics (as many of each kind as
+     *         the builder's {@link CompilationTaskBuilder#setResultDiagnosticLimit limit} allows),
+     *         the files which it produced, and its costs. See {@link CompilationResult} for what
+     *         these include.
+     *
+     * @throws IOException
+     *            If a class or source output location has been set to some file which does not
+     *            actually represent an existing directory.
+     *
+     * @see #newTask()
+     */
+    public CompilationResult compile() throws IOException {
+        return compile(CompilationMeter.start());
+    }
+
+    /**
+     * Creates and calls a new task just as {@link #compile()} does, except that the result's
+     * costs are measured by the given (already started) meter.
+     */
+    CompilationResult compile(CompilationMeter meter) throws IOException {
+        return compile(meter, new ResultRecorder(resultDiagnosticLimit, null));
+    }
+
+    /**
+     * Creates a new task as specified by this template, and then calls it on the given executor.
+     * This returns immediately; the returned future is completed with the result of the call once
+     * it has finished, just as if {@link #compile()} had been called on the executor.
+     *
+     * <p>The compilation can be cancelled by cancelling the returned future (or by completing it in
+     * any other way). Cancellation is cooperative: a compilation which has not yet started will not
+     * be started, and a compilation which is running is aborted the next time that javac reports
+     * some progress, i.e. when it starts or finishes parsing, entering, analyzing or generating
+     * some compilation unit, or starts or finishes some round of annotation processing. An aborted
+     * compilation may already have written some of its outputs.
+     *
+     * <p>A running compilation is aborted by throwing a {@link CancellationException} from a task
+     * listener, which javac wraps (in its {@code ClientCodeException}) and rethrows from the task's
+     * call. Since the future is already done by then, this exception is simply discarded. The
+     * worker thread is not interrupted, since an interrupt could close file channels which are
+     * still used by other compilations (e.g. those of pooled file managers).
+     *
+     * <p>Progress can only be observed if the compiler is (the caller's own) javac. A compilation
+     * by any other compiler can only be cancelled before it has started: cancelling the future
+     * after that completes it, but the compilation still runs to the end on the executor.
+     *
+     * @param  executor The executor on which the task is to be created and called.
+     * @return A future of the result of the compilation. It is completed exceptionally if the task
+     *         could not be created (e.g. with an {@link IOException}).
+     *
+     * @throws java.util.concurrent.RejectedExecutionException
+     *            If the executor rejects the compilation.
+     *
+     * @see #compile()
+     */
+    public CompletableFuture<CompilationResult> compileAsync(Executor executor) {
+        CompletableFuture<CompilationResult> future = new CompletableFuture<>();
+        compileAsync(executor, new ResultRecorder(resultDiagnosticLimit, future));
+        return future;
+    }
+
+    /**
+     * Compiles asynchronously just as {@link #compileAsync(Executor)} does, except that if the
+     * compilation has not finished within the given time (measured from when this is called), then
+     * the returned future is completed exceptionally with a {@link TimeoutException}, and the
+     * compilation is cancelled.
+     *
+     * <p>A timeout is only reported if the compilation can actually be stopped, i.e. if it has not
+     * yet started, or if its progress can be observed (see {@link #compileAsync(Executor)}). A
+     * compilation by any other compiler which has already started is not timed out: its future is
+     * only completed once it has finished, since reporting it as cancelled while it still runs
+     * (and still writes its outputs) would be misleading.
+     *
+     * <p>Timeouts are scheduled on a single daemon thread which is shared by all templates.
+     *
+     * @param  executor The executor on which the task is to be created and called.
+     * @param  timeout  The longest time which the compilation may take.
+     * @param  unit     The unit of the timeout.
+     * @return A future of the result of the compilation.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException
+     *            If the executor rejects the compilation.
+     */
+    public CompletableFuture<CompilationResult> compileAsync(Executor executor, long timeout,
+                                                             TimeUnit unit) {
+        assert unit != null;
+        CompletableFuture<CompilationResult> future = new CompletableFuture<>();
+        ResultRecorder recorder = new ResultRecorder(resultDiagnosticLimit, future);
+        compileAsync(executor, recorder);
+        ScheduledFuture<?> timer = Timeouts.SCHEDULER.schedule(() -> {
+            String msg = "The compilation did not finish within " + timeout + " " + unit + ".";
+            recorder.cancel(new TimeoutException(msg));
+        }, timeout, unit);
+        future.whenComplete((result, ex) -> timer.cancel(false));
+        return future;
+    }
+
+    /**
+     * Creates and calls a new task on the given executor, recording it with the given recorder,
+     * and completes the recorder's future with the result.
+     */
+    private void compileAsync(Executor executor, ResultRecorder recorder) {
+        assert executor != null;
+        CompletableFuture<CompilationResult> future = recorder.cancellation;
+        executor.execute(() -> {
+            if (future.isDone()) {
+                close();  // The compilation was cancelled before it started.
+                return;
+            }
+            try {
+                future.complete(compile(CompilationMeter.start(), recorder));
+            } catch (IOException | RuntimeException | Error ex) {
+                future.completeExceptionally(ex);
+            }
+        });
+    }
+
+    /**
+     * Creates and calls a new task just as {@link #compile()} does, except that the result's
+     * costs are measured by the given (already started) meter, and that it is recorded by the
+     * given recorder. If the recorder's future is done before the task is called, then the task
+     * is not called at all.
+     */
+    private CompilationResult compile(CompilationMeter meter,
+                                      ResultRecorder recorder) throws IOException {
+        CompilationTask task = newTask(inMemoryOutput, recorder);
+        boolean success = false;
+        Throwable failure = null;
+        try {
+            if (recorder.isCancelled()) {
+                release(task);
+                throw new CancellationException("The compilation was cancelled.");
+            }
+            success = task.call();
+        } catch (RuntimeException ex) {
+            failure = ex;
+        }
+        meter.stop();
+        return new CompilationResult(success, recorder.diagnostics.getDiagnostics(),
+                                     recorder.droppedDiagnostics(), recorder.producedFiles(),
+                                     meter, failure);
+    }
+
+    /**
+     * Creates a new task just as {@link #newTask(InMemoryOutput)} does, except that it is also
+     * customized by the given hooks (if they are non-null).
+     */
+    private CompilationTask newTask(InMemoryOutput output, TaskHooks hooks) throws IOException {
+        if (incremental) {
+            if (output != null) {
+                String msg = "Incremental compilation cannot use an in-memory output.";
+                throw new IllegalStateException(msg);
+            }
+            return IncrementalCompilation.newTask(this, hooks);
+        }
+        if (compilationCache != null) {
+            if (output != null) {
+                String msg = "A compilation cache cannot be used with an in-memory output.";
+                throw new IllegalStateException(msg);
+            }
+            return compilationCache.newTask(this, hooks);
+        }
+        return newTask(locations, compilationUnits, output, hooks);
+    }
+
+    /**
+     * Creates a new task as specified by this template, except with the given locations and
+     * compilation units, and customized by the given hooks (if they are non-null).
+     */
+    CompilationTask newTask(StandardJavaFileManagerConfig locations,
+                            List<JavaFileObject> units,
+                            InMemoryOutput output,
+                            TaskHooks hooks) throws IOException {
+        if (fileManagerPool == null) {
+            // The file manager left over from building the template is only configured for the
+            // template's own locations, so it is closed if the first task needs other locations.
+            StandardJavaFileManager fileManager = unusedFileManager.getAndSet(null);
+            if (fileManager != null && locations != this.locations) {
+                closeQuietly(fileManager);
+                fileManager = null;
+            }
+            if (fileManager == null) {
+                fileManager = compiler.getStandardFileManager(diagnostic, null, null);
+                try {
+                    locations.apply(fileManager);
+                } catch (IOException | RuntimeException ex) {
+                    closeQuietly(fileManager);
+                    throw ex;
+                }
+            }
+            StandardJavaFileManager owned = fileManager;
+            return releasingAfterCall(() -> newTask(owned, units, output, hooks),
+                                      () -> closeQuietly(owned));
+        }
+
+        StandardJavaFileManagerPool.Lease lease = fileManagerPool.acquire(locations);
+        return releasingAfterCall(() -> newTask(lease.getFileManager(), units, output, hooks),
+                                  lease::close);
+    }
+
+    /**
+     * Creates a new task just as {@link #newTask()} does, except that a task which would only be
+     * wrapped so that its file manager is released after its call is instead returned unwrapped,
+     * i.e. as the compiler's own task (e.g. a {@link JavacTask}). Its file manager is then never
+     * closed or returned to its pool. This is for {@link CompilationTaskBuilder#build()}.
+     */
+    CompilationTask newUnwrappedTask() throws IOException {
+        CompilationTask task = newTask();
+        return (task instanceof ReleasingTask) ? ((ReleasingTask) task).unwrap() : task;
+    }
+
+    /**
+     * Releases the file manager of a task created by a template, without calling the task. Its
+     * file manager is closed (or returned to its pool), just as if the task had been called. A
+     * task which is not to be called after all should be released, since otherwise its file
+     * manager is never closed. Releasing a task more than once, or releasing a task which has
+     * been called, does nothing.
+     *
+     * @param task A task created by {@link #newTask()} or {@link #newTask(InMemoryOutput)}.
+     */
+    public static void release(CompilationTask task) {
+        while (task instanceof ForwardingCompilationTask && !(task instanceof ReleasingTask)) {
+            task = ((ForwardingCompilationTask) task).delegate;
+        }
+        if (task instanceof ReleasingTask) {
+            ((ReleasingTask) task).release();
+        }
+    }
+
+    /**
+     * Creates a task with the given factory, and wraps it so that the given release is run once
+     * the task has been called (however the call ends). If the task cannot be created, then the
+     * release is run immediately.
+     */
+    private static CompilationTask releasingAfterCall(Supplier<CompilationTask> factory,
+                                                      Runnable release) {
+        CompilationTask task;
+        try {
+            task = factory.get();
+        } catch (RuntimeException ex) {
+            release.run();
+            throw ex;
+        }
+        return new ReleasingTask(task, release);
+    }
+
+    private static void closeQuietly(JavaFileManager fileManager) {
+        try {
+            fileManager.close();
+        } catch (IOException ex) {
+            // There is nothing more to be done with a file manager which cannot be closed.
+        }
+    }
+
+    /**
+     * Closes the file manager which was left over from building this template, if no task has
+     * used it yet. (If the template was built with a pool, then there is no such file manager.)
+     * A template which is dropped without creating any task should be closed, since the file
+     * manager may hold open files (e.g. the jars on the class path).
+     *
+     * <p>This does not affect the tasks which have already been created, and the template can
+     * still be used afterwards: any later task is just given a new file manager.
+     */
+    @Override
+    public void close() {
+        StandardJavaFileManager fileManager = unusedFileManager.getAndSet(null);
+        if (fileManager != null) {
+            closeQuietly(fileManager);
+        }
+    }
+
+    /**
+     * @return The compilation units which each task created from this template will compile.
+     */
+    public List<JavaFileObject> getCompilationUnits() {
+        return compilationUnits;
+    }
+
+    /**
+     * @return The compiler options which are passed to each task created from this template.
+     */
+    public List<String> getOptions() {
+        return options;
+    }
+
+    /**
+     * @return Whether tasks created from this template only compile what has changed.
+     *
+     * @see CompilationTaskBuilder#setIncremental
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @return The compilation cache used by tasks created from this template, or {@code null} if
+     *         there is none.
+     *
+     * @see CompilationTaskBuilder#setCompilationCache
+     */
+    public CompilationCache getCompilationCache() {
+        return compilationCache;
+    }
+
+    /** @return The compiler from which tasks are created. */
+    JavaCompiler getCompiler() {
+        return compiler;
+    }
+
+    /** @return The template's locations. These must not be mutated. */
+    StandardJavaFileManagerConfig getLocations() {
+        return locations;
+    }
+
+    /**
+     * @return The class path of the template's locations, or if that is not configured, then the
+     *         compiler's default class path (e.g. the {@code java.class.path} of this JVM).
+     */
+    List<File> getClassPath() throws IOException {
+        List<File> classPath = locations.snapshot().get(CLASS_PATH);
+        if (classPath != null) {
+            return classPath;
+        }
+        classPath = defaultClassPath;
+        if (classPath == null) {
+            List<File> defaults = new ArrayList<>();
+            try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null,
+                                                                                       null)) {
+                Iterable<? extends File> files = fileManager.getLocation(CLASS_PATH);
+                if (files != null) {
+                    files.forEach(defaults::add);
+                }
+            }
+            defaultClassPath = classPath = unmodifiableList(defaults);
+        }
+        return classPath;
+    }
+
+    private CompilationTask newTask(StandardJavaFileManager standardFileManager,
+                                    List<JavaFileObject> units,
+                                    InMemoryOutput output,
+                                    TaskHooks hooks) {
+        JavaFileManager fileManager = (output == null)
+                ? standardFileManager
+                : new InMemoryJavaFileManager(standardFileManager, output);
+        if (hooks != null) {
+            fileManager = hooks.wrapFileManager(fileManager);
+        }
+        CompilationTask task = compiler.getTask(
+                null,             // TODO: Support user-defined writer.
+                fileManager,
+                (hooks == null) ? diagnostic : hooks.wrapDiagnosticListener(diagnostic),
+                options,
+                null,             // TODO: Support user-defined classes.
+                units
+        );
+        task.setProcessors(newProcessors());
+        if (!taskListeners.isEmpty()) {
+            JavacTask javacTask = TaskHooks.requireJavac(task);
+            for (TaskListener listener : taskListeners) {
+                javacTask.addTaskListener(listener);
+            }
+        }
+        if (hooks != null) {
+            hooks.configureTask(task);
+        }
+        return task;
+    }
+
+    /**
+     * @return The cache keys of the processors which each task is given, in order. No processor
+     *         factory is called to find these, so this must only be called once some task has been
+     *         created (and so every factory has made some processor).
+     *
+     * @throws IllegalStateException If some processor has no cache key.
+     *
+     * @see CompilationTaskBuilder#addProcFactory(Supplier, String)
+     */
+    List<String> getProcessorCacheKeys() {
+        List<String> keys = new ArrayList<>(processors.size());
+        for (ProcessorFactory factory : processors) {
+            String key = factory.getCacheKey();
+            if (key == null) {
+                String msg = "A compilation cache cannot identify the processor `"
+                           + factory.getClassName() + "`, since its behavior is not determined by "
+                           + "its class. Add it with `addProcFactory(factory, cacheKey)`.";
+                throw new IllegalStateException(msg);
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    private List<Processor> newProcessors() {
+        List<Processor> procs = new ArrayList<>(processors.size());
+        for (ProcessorFactory factory : processors) {
+            procs.add(factory.get());
+        }
+        return procs;
+    }
+
+
+    /**
+     * A task which runs some release (e.g. closing its file manager) once it has been called, or
+     * once it is explicitly released. The release is only run once.
+     */
+    private static final class ReleasingTask extends ForwardingCompilationTask {
+
+        private final AtomicReference<Runnable> release;
+
+        ReleasingTask(CompilationTask delegate, Runnable release) {
+            super(delegate);
+            this.release = new AtomicReference<>(release);
+        }
+
+        @Override
+        public Boolean call() {
+            try {
+                return delegate.call();
+            } finally {
+                release();
+            }
+        }
+
+        /** @return The wrapped task, which will then never be released. */
+        CompilationTask unwrap() {
+            release.set(null);
+            return delegate;
+        }
+
+        void release() {
+            Runnable r = release.getAndSet(null);
+            if (r != null) {
+                r.run();
+            }
+        }
+    }
+
+
+    /** Holds the thread on which asynchronous compilations' timeouts are scheduled. */
+    private static final class Timeouts {
+
+        static final ScheduledExecutorService SCHEDULER =
+                Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "compilation-timeouts");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+
+    /**
+     * Collects a task's diagnostics and the files which it produces, and (if it is given a future)
+     * aborts the task once that future is done.
+     */
+    private static final class ResultRecorder implements TaskHooks, TaskListener {
+
+        final BoundedDiagnosticCollector diagnostics;
+        final CompletableFuture<CompilationResult> cancellation;
+        private final Set<URI> produced = Collections.synchronizedSet(new LinkedHashSet<>());
+
+        /** Whether the task can be aborted, or {@code null} if it has not yet been configured. */
+        private Boolean abortable = null;
+
+        ResultRecorder(int diagnosticLimit, CompletableFuture<CompilationResult> cancellation) {
+            this.diagnostics = new BoundedDiagnosticCollector(diagnosticLimit);
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        public void configureTask(CompilationTask task) {
+            if (cancellation == null) {
+                return;
+            }
+            boolean javac = task instanceof JavacTask;
+            if (javac) {
+                ((JavacTask) task).addTaskListener(this);
+            }
+            synchronized (this) {
+                abortable = javac;
+            }
+        }
+
+        /**
+         * Completes the future exceptionally with the given exception, unless the task has been
+         * configured but cannot be aborted (in which case it may already be running). A task which
+         * has not been configured yet will not be called once the future is done.
+         */
+        synchronized void cancel(Throwable ex) {
+            if (abortable != Boolean.FALSE) {
+                cancellation.completeExceptionally(ex);
+            }
+        }
+
+        /** @return Whether the task is to be aborted (or not called at all). */
+        boolean isCancelled() {
+            return cancellation != null && cancellation.isDone();
+        }
+
+        @Override
+        public void started(TaskEvent e) {
+            checkCancellation();
+        }
+
+        @Override
+        public void finished(TaskEvent e) {
+            checkCancellation();
+        }
+
+        private void checkCancellation() {
+            if (isCancelled()) {
+                throw new CancellationException("The compilation was cancelled.");
+            }
+        }
+
+        @Override
+        public JavaFileManager wrapFileManager(JavaFileManager fileManager) {
+            return new OutputRecordingFileManager(fileManager, (location, file) -> {
+                if (location.isOutputLocation()) {
+                    produced.add(file.toUri());
+                }
+            });
+        }
+
+        @Override
+        public DiagnosticListener<? super JavaFileObject> wrapDiagnosticListener(
+                                            DiagnosticListener<? super JavaFileObject> listener) {
+            if (listener == null) {
+                return diagnostics;
+            }
+            return diagnostic -> {
+                diagnostics.report(diagnostic);
+                listener.report(diagnostic);
+            };
+        }
+
+        @Override
+        public void outputRestored(StandardLocation location, Path file) {
+            produced.add(file.toUri());
+        }
+
+        int droppedDiagnostics() {
+            int dropped = 0;
+            for (Diagnostic.Kind kind : Diagnostic.Kind.values()) {
+                dropped += diagnostics.getDroppedCount(kind);
+            }
+            return dropped;
+        }
+
+        List<URI> producedFiles() {
+            synchronized (produced) {
+                return new ArrayList<>(produced);
+            }
+        }
+    }
+}
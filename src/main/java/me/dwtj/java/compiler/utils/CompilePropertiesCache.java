@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import org.apache.commons.configuration2.ConfigurationUtils;
+import org.apache.commons.configuration2.ImmutableConfiguration;
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.configuration2.io.FileHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The process-wide cache behind {@link CompilationTaskBuilder#compilePropertiesCached(File)}.
+ *
+ * <p>No lock is held while the file system is accessed. Each entry is the future of a file's
+ * latest load, so callers which find the same stale file all wait for a single reload, but callers
+ * of any other file are never blocked by it. At most {@value #MAX_ENTRIES} files are kept; beyond
+ * that, the least recently used entries are evicted.
+ *
+ * @author dwtj
+ */
+final class CompilePropertiesCache {
+
+    /** The most files which are kept in the cache. */
+    static final int MAX_ENTRIES = 256;
+
+    /** Keyed by canonical path, so that different names for one file share an entry. */
+    private static final ConcurrentMap<String, Slot> CACHE = new ConcurrentHashMap<>();
+
+    /** Orders the uses of slots, so that the least recently used slot can be evicted. */
+    private static final AtomicLong CLOCK = new AtomicLong();
+
+    private CompilePropertiesCache() { }
+
+    static ImmutableConfiguration get(File configFile) {
+        String key;
+        BasicFileAttributes attrs;
+        try {
+            key = configFile.getCanonicalPath();
+            attrs = Files.readAttributes(Paths.get(key), BasicFileAttributes.class);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+
+        while (true) {
+            Slot slot = CACHE.get(key);
+            Entry cached = (slot == null) ? null : slot.await();
+            if (cached != null && cached.size == size && cached.modified == modified) {
+                slot.touch();
+                return cached.config;
+            }
+            Slot reload = new Slot();
+            boolean claimed = (slot == null) ? CACHE.putIfAbsent(key, reload) == null
+                                             : CACHE.replace(key, slot, reload);
+            if (!claimed) {
+                continue;  // Some other caller has just started to reload the file, so wait for it.
+            }
+            if (slot == null) {
+                evictLeastRecentlyUsed();
+            }
+            try {
+                Entry entry = load(new File(key), size, modified, cached);
+                reload.future.complete(entry);
+                return entry.config;
+            } catch (RuntimeException ex) {
+                CACHE.remove(key, reload);
+                reload.future.completeExceptionally(ex);
+                throw ex;
+            }
+        }
+    }
+
+    static void clear() {
+        CACHE.clear();
+    }
+
+    private static void evictLeastRecentlyUsed() {
+        while (CACHE.size() > MAX_ENTRIES) {
+            Map.Entry<String, Slot> oldest = null;
+            for (Map.Entry<String, Slot> e : CACHE.entrySet()) {
+                if (oldest == null || e.getValue().lastUsed < oldest.getValue().lastUsed) {
+                    oldest = e;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            CACHE.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    /**
+     * Loads the given file, whose size and modification time were just read, reusing the given
+     * previously cached entry (if it is non-null) if the file's contents have not changed.
+     */
+    private static Entry load(File file, long size, long modified, Entry cached) {
+        try {
+            // The file has been touched, but maybe not changed, e.g. by a checkout or a copy. Its
+            // contents are read just once, and then both hashed and parsed, so that the hash always
+            // matches the parsed config even if the file is being written concurrently. (The stamp
+            // was taken first, so such a write makes the stamp stale, and the file is re-read.)
+            byte[] contents = Files.readAllBytes(file.toPath());
+            MessageDigest digest = IncrementalCompilation.newDigest();
+            String hash = IncrementalCompilation.toHex(digest.digest(contents));
+            if (cached != null && cached.hash.equals(hash)) {
+                return new Entry(size, modified, hash, cached.config);
+            }
+            ImmutableConfiguration config = ConfigurationUtils.unmodifiableConfiguration(
+                    parse(file, contents));
+            return new Entry(size, modified, hash, config);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+
+    /**
+     * Parses the given contents of the given file just as
+     * {@link CompilationTaskBuilder#compileProperties} would parse the file itself. (The file is
+     * still used to resolve any relative includes.)
+     */
+    private static PropertiesConfiguration parse(File file, byte[] contents) {
+        PropertiesConfiguration config = new PropertiesConfiguration();
+        FileHandler handler = new FileHandler(config);
+        handler.setFile(file);
+        try {
+            handler.load(new ByteArrayInputStream(contents));
+        } catch (ConfigurationException ex) {
+            throw new RuntimeException("Failed to create a configuration from file " + file);
+        }
+        return config;
+    }
+
+
+    /** The (possibly still running) latest load of some file, and when it was last used. */
+    private static final class Slot {
+
+        final CompletableFuture<Entry> future = new CompletableFuture<>();
+        volatile long lastUsed = CLOCK.incrementAndGet();
+
+        /** @return The loaded entry, or {@code null} if the load failed. */
+        Entry await() {
+            try {
+                return future.join();
+            } catch (CompletionException ex) {
+                return null;
+            }
+        }
+
+        void touch() {
+            lastUsed = CLOCK.incrementAndGet();
+        }
+    }
+
+
+    private static final class Entry {
+
+        final long size;
+        final long modified;
+        final String hash;
+        final ImmutableConfiguration config;
+
+        Entry(long size, long modified, String hash, ImmutableConfiguration config) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.config = config;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import javax.annotation.processing.Processor;
+import javax.tools.JavaCompiler.CompilationTask;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Locale;
+
+/**
+ * A {@link CompilationTask} which forwards all of its method calls to some other task. Subclasses
+ * override {@link #call()} to do some work around the delegate's compilation.
+ *
+ * @author dwtj
+ */
+class ForwardingCompilationTask implements CompilationTask {
+
+    protected final CompilationTask delegate;
+
+    ForwardingCompilationTask(CompilationTask delegate) {
+        assert delegate != null;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void setProcessors(Iterable<? extends Processor> processors) {
+        delegate.setProcessors(processors);
+    }
+
+    @Override
+    public void setLocale(Locale locale) {
+        delegate.setLocale(locale);
+    }
+
+    /**
+     * Forwards to the delegate's {@code addModules()} method, which only exists as of Java 9.
+     * Reflection is used so that this class can still be compiled against Java 8.
+     *
+     * @param moduleNames The names of the root modules to be passed to the delegate.
+     */
+    public void addModules(Iterable<String> moduleNames) {
+        try {
+            CompilationTask.class.getMethod("addModules", Iterable.class)
+                                 .invoke(delegate, moduleNames);
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new UnsupportedOperationException("Modules are not supported.", ex);
+        } catch (InvocationTargetException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    @Override
+    public Boolean call() {
+        return delegate.call();
+    }
+}
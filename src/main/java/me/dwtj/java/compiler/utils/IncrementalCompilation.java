@@ -0,0 +1,524 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
+import me.dwtj.java.compiler.utils.CompilationTaskBuilder.StandardJavaFileManagerConfig;
+
+import javax.annotation.processing.Processor;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileObject;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static javax.tools.JavaFileObject.Kind.CLASS;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+import static javax.tools.StandardLocation.CLASS_PATH;
+import static me.dwtj.java.compiler.utils.CompilationTaskBuilder.StandardJavaFileManagerConfig.makeConfig;
+
+/**
+ * <p>Creates incremental compilation tasks from a {@link CompilationTaskTemplate}. See
+ * {@link CompilationTaskBuilder#setIncremental} for the user-visible semantics.
+ *
+ * <p>The state of the last compilation is kept in a small text file in the class output directory.
+ * For each file-based compilation unit, it records the unit's size, modification time, and content
+ * hash, the class files (relative to the class output directory) which were generated from it,
+ * and the other units upon which it depends. A unit depends upon another unit if it refers to any
+ * element declared (or nested) within a top-level type of that unit. These dependencies are found
+ * by scanning the attributed trees of each recompiled unit.
+ *
+ * @author dwtj
+ */
+final class IncrementalCompilation {
+
+    static final String STATE_FILE_NAME = "java-compiler-utils-incremental.state";
+
+    private static final String STATE_FILE_HEADER = "# java-compiler-utils incremental state v1";
+
+    private IncrementalCompilation() { }
+
+    static CompilationTask newTask(CompilationTaskTemplate template,
+                                   TaskHooks hooks) throws IOException {
+        StandardJavaFileManagerConfig locations = template.getLocations();
+        List<File> classOutputs = locations.snapshot().get(CLASS_OUTPUT);
+        if (classOutputs == null || classOutputs.size() != 1) {
+            String msg = "Incremental compilation requires a single class output directory.";
+            throw new IllegalStateException(msg);
+        }
+        Path classOutput = classOutputs.get(0).toPath();
+        Path stateFile = classOutput.resolve(STATE_FILE_NAME);
+        Map<URI, Entry> previous = load(stateFile);
+
+        // Partition the units, and find those tracked units which have themselves changed.
+        List<JavaFileObject> untracked = new ArrayList<>();
+        Map<URI, JavaFileObject> tracked = new LinkedHashMap<>();
+        Map<URI, Entry> current = new HashMap<>();
+        Set<URI> dirty = new LinkedHashSet<>();
+        for (JavaFileObject unit : template.getCompilationUnits()) {
+            URI uri = unit.toUri();
+            if (!"file".equals(uri.getScheme())) {
+                untracked.add(unit);
+                continue;
+            }
+            tracked.put(uri, unit);
+            Entry old = previous.get(uri);
+            Entry now = stamp(Paths.get(uri), old);
+            current.put(uri, now);
+            if (old == null || !old.hash.equals(now.hash) || isAnyOutputMissing(old, classOutput)) {
+                dirty.add(uri);
+            }
+        }
+        Set<URI> removed = new HashSet<>(previous.keySet());
+        removed.removeAll(tracked.keySet());
+
+        // Everything which (transitively) depends upon a changed or removed unit is also dirty.
+        Map<URI, Set<URI>> dependents = new HashMap<>();
+        previous.forEach((uri, entry) -> entry.dependencies.forEach(
+                dep -> dependents.computeIfAbsent(dep, k -> new HashSet<>()).add(uri)));
+        Deque<URI> worklist = new ArrayDeque<>(dirty);
+        worklist.addAll(removed);
+        while (!worklist.isEmpty()) {
+            for (URI dependent : dependents.getOrDefault(worklist.pop(), Collections.emptySet())) {
+                if (tracked.containsKey(dependent) && dirty.add(dependent)) {
+                    worklist.push(dependent);
+                }
+            }
+        }
+
+        // Outputs of removed and dirty units are stale. (Dirty units' outputs will be rewritten.)
+        // Nothing is deleted or saved until the task is called, so a task which is never called
+        // leaves the class output directory and its state file just as they were.
+        List<Entry> stale = new ArrayList<>();
+        Map<URI, Entry> next = new HashMap<>();
+        for (URI uri : previous.keySet()) {
+            if (removed.contains(uri) || dirty.contains(uri)) {
+                stale.add(previous.get(uri));
+            } else {
+                next.put(uri, previous.get(uri).withStamp(current.get(uri)));
+            }
+        }
+
+        List<JavaFileObject> units = new ArrayList<>(untracked);
+        dirty.forEach(uri -> units.add(tracked.get(uri)));
+        if (units.isEmpty()) {
+            return new UpToDateTask(() -> {
+                if (deleteOutputs(stale, classOutput)) {
+                    trySave(stateFile, next);
+                }
+            });
+        }
+
+        Recorder recorder = new Recorder(classOutputToSource(previous));
+        CompilationTask task = template.newTask(withClassOutputOnClassPath(template, classOutput),
+                                                units, null, TaskHooks.compose(recorder, hooks));
+        return new ForwardingCompilationTask(task) {
+            @Override
+            public Boolean call() {
+                // The stale outputs are deleted first, so that javac cannot resolve anything
+                // against them. If the compilation then fails, the state file is left as it was:
+                // each dirty unit either still differs from its recorded hash or is missing some
+                // recorded output, so it will be recompiled next time.
+                boolean deleted = deleteOutputs(stale, classOutput);
+                boolean success = delegate.call();
+                if (success && deleted) {
+                    for (URI uri : dirty) {
+                        Entry entry = current.get(uri);
+                        next.put(uri, entry.withRecord(recorder.outputs.get(uri),
+                                                       recorder.dependencies.get(uri)));
+                    }
+                    trySave(stateFile, next);
+                }
+                return success;
+            }
+        };
+    }
+
+    /**
+     * Returns a copy of the template's locations in which the class output directory is the first
+     * entry of the class path. If the class path was not explicitly configured, then the compiler's
+     * default class path follows it.
+     */
+    private static StandardJavaFileManagerConfig withClassOutputOnClassPath(
+            CompilationTaskTemplate template, Path classOutput) throws IOException {
+        List<File> classPath = template.getClassPath();
+        StandardJavaFileManagerConfig copy = makeConfig(template.getLocations());
+        copy.setAs(CLASS_PATH, classOutput.toFile());
+        copy.addAllTo(CLASS_PATH, classPath);
+        return copy;
+    }
+
+    private static Map<String, URI> classOutputToSource(Map<URI, Entry> previous) {
+        Map<String, URI> owners = new HashMap<>();
+        previous.forEach((uri, entry) -> entry.outputs.forEach(out -> owners.put(out, uri)));
+        return owners;
+    }
+
+    private static boolean isAnyOutputMissing(Entry entry, Path classOutput) {
+        for (String output : entry.outputs) {
+            if (!Files.exists(classOutput.resolve(output))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deletes as many of the outputs of the given entries as possible.
+     *
+     * @return Whether every output was deleted (or was already missing). If not, then the state
+     *         file must not be saved, so that the next compilation tries again.
+     */
+    private static boolean deleteOutputs(List<Entry> entries, Path classOutput) {
+        boolean deleted = true;
+        for (Entry entry : entries) {
+            for (String output : entry.outputs) {
+                try {
+                    Files.deleteIfExists(classOutput.resolve(output));
+                } catch (IOException ex) {
+                    deleted = false;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Stamps the given file. The file's hash is only recomputed if its size or modification time
+     * differ from those of the previous entry.
+     */
+    private static Entry stamp(Path file, Entry previous) throws IOException {
+        long size = Files.size(file);
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        if (previous != null && previous.size == size && previous.lastModified == lastModified) {
+            return new Entry(size, lastModified, previous.hash);
+        }
+        return new Entry(size, lastModified, hash(file));
+    }
+
+    static String hash(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("Every Java platform must support SHA-256.", ex);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format(Locale.ROOT, "%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static Map<URI, Entry> load(Path stateFile) throws IOException {
+        Map<URI, Entry> entries = new HashMap<>();
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(stateFile, UTF_8);
+        } catch (NoSuchFileException ex) {
+            return entries;
+        }
+        if (lines.isEmpty() || !lines.get(0).equals(STATE_FILE_HEADER)) {
+            return entries;  // An unknown format is treated just like a missing state.
+        }
+        Entry entry = null;
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split("\t");
+            switch (fields[0]) {
+                case "S":
+                    entry = new Entry(Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                                      fields[4]);
+                    entries.put(URI.create(fields[1]), entry);
+                    break;
+                case "O":
+                    entry.outputs.add(fields[1]);
+                    break;
+                case "D":
+                    entry.dependencies.add(URI.create(fields[1]));
+                    break;
+                default:
+                    throw new IOException("Malformed incremental state file: " + stateFile);
+            }
+        }
+        return entries;
+    }
+
+    private static void trySave(Path stateFile, Map<URI, Entry> entries) {
+        try {
+            save(stateFile, entries);
+        } catch (IOException ex) {
+            // Without a saved state, the next compilation will just recompile more.
+        }
+    }
+
+    private static void save(Path stateFile, Map<URI, Entry> entries) throws IOException {
+        Path temp = Files.createTempFile(stateFile.getParent(), STATE_FILE_NAME, ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, UTF_8)) {
+            out.write(STATE_FILE_HEADER);
+            out.newLine();
+            for (Map.Entry<URI, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.write("S\t" + e.getKey() + "\t" + entry.size + "\t" + entry.lastModified
+                          + "\t" + entry.hash);
+                out.newLine();
+                for (String output : entry.outputs) {
+                    out.write("O\t" + output);
+                    out.newLine();
+                }
+                for (URI dependency : entry.dependencies) {
+                    out.write("D\t" + dependency);
+                    out.newLine();
+                }
+            }
+        }
+        try {
+            Files.move(temp, stateFile, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp, stateFile, REPLACE_EXISTING);
+        }
+    }
+
+
+    /** The recorded state of a single file-based compilation unit. */
+    private static final class Entry {
+
+        final long size;
+        final long lastModified;
+        final String hash;
+        final Set<String> outputs = new LinkedHashSet<>();
+        final Set<URI> dependencies = new LinkedHashSet<>();
+
+        Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        /** @return A copy of this entry, but with the given entry's stamp. */
+        Entry withStamp(Entry stamp) {
+            Entry copy = new Entry(stamp.size, stamp.lastModified, stamp.hash);
+            copy.outputs.addAll(outputs);
+            copy.dependencies.addAll(dependencies);
+            return copy;
+        }
+
+        /** @return A copy of this entry's stamp, but with the given outputs and dependencies. */
+        Entry withRecord(Set<String> outputs, Set<URI> dependencies) {
+            Entry copy = new Entry(size, lastModified, hash);
+            if (outputs != null) {
+                copy.outputs.addAll(outputs);
+            }
+            if (dependencies != null) {
+                copy.dependencies.addAll(dependencies);
+            }
+            return copy;
+        }
+    }
+
+
+    /** Records the class files generated from and the dependencies of each recompiled unit. */
+    private static final class Recorder implements TaskListener, TaskHooks {
+
+        final Map<URI, Set<String>> outputs = new HashMap<>();
+        final Map<URI, Set<URI>> dependencies = new HashMap<>();
+
+        /** Maps each class file generated by the previous compilation to the unit it came from. */
+        private final Map<String, URI> previousOwners;
+        /** Maps the class file of each top-level type entered by this compilation to its unit. */
+        private final Map<String, URI> owners = new HashMap<>();
+        private final Set<CompilationUnitTree> scannedImports =
+                Collections.newSetFromMap(new IdentityHashMap<>());
+        private Trees trees;
+        private Elements elements;
+
+        Recorder(Map<String, URI> previousOwners) {
+            this.previousOwners = previousOwners;
+        }
+
+        @Override
+        public void configureTask(CompilationTask compilationTask) {
+            JavacTask task = TaskHooks.requireJavac(compilationTask);
+            trees = Trees.instance(task);
+            elements = task.getElements();
+            task.addTaskListener(this);
+        }
+
+        @Override
+        public void started(TaskEvent e) { }
+
+        @Override
+        public void finished(TaskEvent e) {
+            if (e.getKind() == TaskEvent.Kind.ENTER && e.getCompilationUnit() != null) {
+                recordOwners(e.getCompilationUnit());
+            } else if (e.getKind() == TaskEvent.Kind.ANALYZE && e.getTypeElement() != null) {
+                recordDependencies(e.getCompilationUnit(), e.getTypeElement());
+            } else if (e.getKind() == TaskEvent.Kind.GENERATE && e.getTypeElement() != null) {
+                URI source = e.getSourceFile().toUri();
+                outputs.computeIfAbsent(source, k -> new LinkedHashSet<>())
+                       .add(classFileOf(e.getTypeElement()));
+            }
+        }
+
+        private void recordOwners(CompilationUnitTree unit) {
+            URI source = unit.getSourceFile().toUri();
+            TreePath unitPath = new TreePath(unit);
+            for (Tree decl : unit.getTypeDecls()) {
+                Element element = trees.getElement(new TreePath(unitPath, decl));
+                if (element instanceof TypeElement) {
+                    owners.put(classFileOf((TypeElement) element), source);
+                }
+            }
+        }
+
+        private void recordDependencies(CompilationUnitTree unit, TypeElement analyzed) {
+            URI source = unit.getSourceFile().toUri();
+            Set<URI> deps = dependencies.computeIfAbsent(source, k -> new LinkedHashSet<>());
+            Set<Element> referenced = new HashSet<>();
+            TreePathScanner<Void, Void> scanner = new TreePathScanner<Void, Void>() {
+                @Override
+                public Void visitIdentifier(IdentifierTree tree, Void v) {
+                    addTopLevelOf(trees.getElement(getCurrentPath()), referenced);
+                    return super.visitIdentifier(tree, v);
+                }
+
+                @Override
+                public Void visitMemberSelect(MemberSelectTree tree, Void v) {
+                    addTopLevelOf(trees.getElement(getCurrentPath()), referenced);
+                    return super.visitMemberSelect(tree, v);
+                }
+            };
+            TreePath path = trees.getPath(analyzed);
+            if (path != null) {
+                scanner.scan(path, null);
+            }
+            if (scannedImports.add(unit)) {
+                unit.getImports().forEach(i -> scanner.scan(new TreePath(new TreePath(unit), i),
+                                                            null));
+            }
+            for (Element top : referenced) {
+                URI dep = sourceOf((TypeElement) top);
+                if (dep != null && !dep.equals(source)) {
+                    deps.add(dep);
+                }
+            }
+        }
+
+        /**
+         * Finds the unit which declares the given top-level type. This cannot simply ask for the
+         * type's tree, since javac discards the trees of classes which it has already generated.
+         */
+        private URI sourceOf(TypeElement top) {
+            String classFile = classFileOf(top);
+            URI source = owners.get(classFile);
+            return source != null ? source : previousOwners.get(classFile);
+        }
+
+        private String classFileOf(TypeElement type) {
+            return elements.getBinaryName(type).toString().replace('.', '/') + CLASS.extension;
+        }
+
+        private static void addTopLevelOf(Element element, Set<Element> referenced) {
+            Element top = element;
+            while (top != null && top.getEnclosingElement() != null
+                               && !(top.getEnclosingElement() instanceof PackageElement)) {
+                top = top.getEnclosingElement();
+            }
+            if (top != null && top.getKind() != ElementKind.PACKAGE && top instanceof TypeElement) {
+                referenced.add(top);
+            }
+        }
+    }
+
+
+    /**
+     * A task which compiles nothing, since everything is up to date. Calling it runs some action
+     * (e.g. the deletion of the outputs of removed units).
+     */
+    private static final class UpToDateTask implements CompilationTask {
+
+        private final Runnable action;
+
+        UpToDateTask(Runnable action) {
+            this.action = action;
+        }
+
+        @Override
+        public void setProcessors(Iterable<? extends Processor> processors) { }
+
+        @Override
+        public void setLocale(Locale locale) { }
+
+        public void addModules(Iterable<String> moduleNames) { }
+
+        @Override
+        public Boolean call() {
+            action.run();
+            return true;
+        }
+    }
+}
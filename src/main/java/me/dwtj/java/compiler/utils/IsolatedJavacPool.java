@@ -0,0 +1,294 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import me.dwtj.java.compiler.utils.mem.InMemoryOutput;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * <p>A fixed-size pool of isolated javac instances, each loaded by its own class loader, for
+ * running many compilations in one JVM truly in parallel. Since no two of the pool's compilers
+ * share any classes, they share no static state (e.g. javac's name tables and caches), and so
+ * concurrent compilations cannot interfere with one another.
+ *
+ * <p>Each compiler is warmed up when the pool is made, by compiling a small canned source file in
+ * memory. This loads and links much of javac (and lets the JIT compiler see it), so that even the
+ * first real compilation done with each compiler is not slowed by its class loading.
+ *
+ * <p>A compiler is borrowed via {@link #acquire} and is returned to the pool by closing the
+ * {@link Lease} which wraps it. While a lease is open, no one else will be given its compiler. A
+ * borrowed compiler is given to a builder via {@link CompilationTaskBuilder#setCompilerSource},
+ * e.g.:
+ *
+ * <pre>{@code
+ * try (IsolatedJavacPool.Lease lease = pool.acquire()) {
+ *     builder.setCompilerSource(lease.getCompilerSource()).build().call();
+ * }
+ * }</pre>
+ *
+ * <p>The pooled compilers share the caller's Compiler Tree API (i.e. {@code com.sun.source}), so
+ * all of the features of this package, e.g. {@link CompilationTaskBuilder#addTaskListener task
+ * listeners}, {@link CompilationTaskBuilder#setIncremental incremental compilation}, and the
+ * {@link me.dwtj.java.compiler.utils.proc.CompilationUnitsProcessor}, can be used with them. This
+ * requires the pooled javac to be of the same major version as the running JDK's. See
+ * {@link JavaCompilerSource#isolated}.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @see JavaCompilerSource#isolated
+ *
+ * @author dwtj
+ */
+final public class IsolatedJavacPool {
+
+    /** The name of the class in the source file which each compiler compiles to warm it up. */
+    private static final String WARM_UP_CLASS = "IsolatedJavacPoolWarmUp";
+
+    /** A source file which exercises the common parts of javac: generics, lambdas and so on. */
+    private static final String WARM_UP_SOURCE =
+            "import java.util.*;\n"
+          + "import java.util.function.*;\n"
+          + "import java.util.stream.*;\n"
+          + "class " + WARM_UP_CLASS + "<T extends Comparable<? super T>> {\n"
+          + "    private final List<T> items = new ArrayList<>();\n"
+          + "    @SafeVarargs\n"
+          + "    final " + WARM_UP_CLASS + "<T> add(T... ts) {\n"
+          + "        items.addAll(Arrays.asList(ts));\n"
+          + "        return this;\n"
+          + "    }\n"
+          + "    Map<Boolean, List<String>> partition(Predicate<? super T> p) {\n"
+          + "        return items.stream().sorted().collect(Collectors.partitioningBy(p,\n"
+          + "                Collectors.mapping(Object::toString, Collectors.toList())));\n"
+          + "    }\n"
+          + "    interface Shape { double area(); }\n"
+          + "    enum Unit implements Shape {\n"
+          + "        SQUARE { public double area() { return 1.0; } },\n"
+          + "        CIRCLE { public double area() { return Math.PI / 4; } }\n"
+          + "    }\n"
+          + "    static int sum(int[] xs) {\n"
+          + "        int total = 0;\n"
+          + "        for (int x : xs) {\n"
+          + "            try {\n"
+          + "                total = Math.addExact(total, x);\n"
+          + "            } catch (ArithmeticException ex) {\n"
+          + "                throw new IllegalStateException(\"overflow\", ex);\n"
+          + "            }\n"
+          + "        }\n"
+          + "        return total;\n"
+          + "    }\n"
+          + "    static String describe(Object o) {\n"
+          + "        switch (String.valueOf(o)) {\n"
+          + "            case \"a\": return \"first\";\n"
+          + "            default: return o instanceof Number ? \"number\" : \"other\";\n"
+          + "        }\n"
+          + "    }\n"
+          + "}\n";
+
+    private final int size;
+    private final BlockingQueue<JavaCompilerSource> idle;
+
+    /**
+     * Instantiates a pool of compilers loaded from the JDK's {@code lib/tools.jar}. This only
+     * exists in JDKs before Java 9; in later JDKs, javac is a module of the platform itself, so a
+     * class path of some separately distributed javac must be given instead.
+     *
+     * @param size The number of compilers in the pool, i.e. the most compilations which can be run
+     *             with pooled compilers at once.
+     *
+     * @throws IllegalStateException If there is no {@code tools.jar}, or if a compiler fails to
+     *                               load or to compile the warm-up source.
+     */
+    public IsolatedJavacPool(int size) {
+        this(size, findToolsJar());
+    }
+
+    /**
+     * Instantiates a pool of compilers loaded from the given class path, and warms each one up.
+     * The compilers are loaded and warmed up in parallel.
+     *
+     * @param size           The number of compilers in the pool, i.e. the most compilations which
+     *                       can be run with pooled compilers at once.
+     * @param javacClassPath The class path from which each compiler is to be loaded.
+     *
+     * @throws IllegalArgumentException If the size is not positive.
+     * @throws IllegalStateException    If a compiler fails to load or to compile the warm-up
+     *                                  source.
+     *
+     * @see JavaCompilerSource#isolated
+     */
+    public IsolatedJavacPool(int size, URL... javacClassPath) {
+        assert javacClassPath != null;
+        if (size <= 0) {
+            throw new IllegalArgumentException("The pool size must be positive: " + size);
+        }
+        List<JavaCompilerSource> compilers = IntStream.range(0, size)
+                                                      .parallel()
+                                                      .mapToObj(i -> javacClassPath)
+                                                      .map(IsolatedJavacPool::newWarmCompiler)
+                                                      .collect(toList());
+        this.size = size;
+        this.idle = new ArrayBlockingQueue<>(size, false, compilers);
+    }
+
+    /**
+     * @return The number of compilers in the pool.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of compilers which are not currently leased.
+     */
+    public int available() {
+        return idle.size();
+    }
+
+    /**
+     * Leases a compiler, waiting until one is available if necessary.
+     *
+     * @return An open lease on one of the pool's compilers.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public Lease acquire() throws InterruptedException {
+        return new Lease(idle.take());
+    }
+
+    /**
+     * Leases a compiler, waiting at most the given time until one is available.
+     *
+     * @param  timeout The longest time to wait.
+     * @param  unit    The unit of the timeout.
+     * @return An open lease on one of the pool's compilers, or {@code null} if none became
+     *         available in time.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public Lease acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        JavaCompilerSource compiler = idle.poll(timeout, unit);
+        return (compiler == null) ? null : new Lease(compiler);
+    }
+
+    private static JavaCompilerSource newWarmCompiler(URL[] javacClassPath) {
+        JavaCompilerSource source = JavaCompilerSource.isolated(javacClassPath);
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        boolean success;
+        try {
+            success = CompilationTaskBuilder.newBuilder()
+                                            .setCompilerSource(source)
+                                            .addSource(WARM_UP_CLASS, WARM_UP_SOURCE)
+                                            .setInMemoryOutput(new InMemoryOutput())
+                                            .setDiagnosticListener(diagnostics)
+                                            .build()
+                                            .call();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        if (!success) {
+            String msg = "An isolated compiler failed to compile the warm-up source: "
+                       + diagnostics.getDiagnostics();
+            throw new IllegalStateException(msg);
+        }
+        return source;
+    }
+
+    private static URL[] findToolsJar() {
+        File toolsJar = new File(System.getProperty("java.home"), "../lib/tools.jar");
+        if (!toolsJar.isFile()) {
+            String msg = "This JDK has no tools.jar; a class path of some javac must be given.";
+            throw new IllegalStateException(msg);
+        }
+        try {
+            return new URL[] { toolsJar.getCanonicalFile().toURI().toURL() };
+        } catch (MalformedURLException ex) {
+            throw new IllegalStateException(ex);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+
+    /**
+     * A handle on a compiler borrowed from an {@link IsolatedJavacPool}. Closing the lease returns
+     * the compiler to its pool. A lease can only be closed once; any later calls to
+     * {@link #close()} have no effect.
+     *
+     * <p>A compilation task created with a leased compiler must not be called after its lease has
+     * been closed.
+     */
+    final public class Lease implements AutoCloseable {
+
+        private JavaCompilerSource compiler;
+
+        private Lease(JavaCompilerSource compiler) {
+            this.compiler = compiler;
+        }
+
+        /**
+         * @return A source of the leased compiler, to be given to a builder.
+         *
+         * @throws IllegalStateException If this lease has already been closed.
+         *
+         * @see CompilationTaskBuilder#setCompilerSource
+         */
+        public synchronized JavaCompilerSource getCompilerSource() {
+            if (compiler == null) {
+                throw new IllegalStateException("This compiler lease has been closed.");
+            }
+            return compiler;
+        }
+
+        /**
+         * @return The leased compiler.
+         *
+         * @throws IllegalStateException If this lease has already been closed.
+         */
+        public JavaCompiler getCompiler() {
+            return getCompilerSource().get();
+        }
+
+        /**
+         * Returns the leased compiler to its pool.
+         */
+        @Override
+        public void close() {
+            JavaCompilerSource returned;
+            synchronized (this) {
+                returned = compiler;
+                compiler = null;
+            }
+            if (returned != null) {
+                idle.add(returned);
+            }
+        }
+    }
+}
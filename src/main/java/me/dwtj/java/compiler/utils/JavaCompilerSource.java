@@ -0,0 +1,225 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.ServiceLoader;
+import java.util.function.Supplier;
+
+/**
+ * A thread-safe, shareable source of a {@link JavaCompiler}. The compiler is looked up at most
+ * once per source, when it is first needed, and the same instance is returned from then on. So a
+ * single source can be shared by many builders without repeating the lookup.
+ *
+ * <p>There are three kinds of sources:
+ *
+ * <ul>
+ *   <li>{@link #system()}, the system Java compiler as found by
+ *       {@link ToolProvider#getSystemJavaCompiler()};</li>
+ *   <li>{@link #of(JavaCompiler)}, some given compiler instance, e.g. one which has already been
+ *       warmed up;</li>
+ *   <li>{@link #isolated(URL...)}, a compiler loaded from some given class path by its own class
+ *       loader, e.g. a javac of some other version than the running JDK's.</li>
+ * </ul>
+ *
+ * @see CompilationTaskBuilder#setCompilerSource
+ * @see me.dwtj.java.compiler.utils.dagger.JavaCompilerModule
+ *
+ * @author dwtj
+ */
+final public class JavaCompilerSource {
+
+    private static final JavaCompilerSource SYSTEM = new JavaCompilerSource("system", () -> {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            String msg = "There is no system Java compiler; is this running on a JRE?";
+            throw new IllegalStateException(msg);
+        }
+        return compiler;
+    });
+
+    /** The fully qualified name of javac's implementation of {@link JavaCompiler}. */
+    private static final String JAVAC_TOOL = "com.sun.tools.javac.api.JavacTool";
+
+    private final String description;
+    private final Supplier<JavaCompiler> lookup;
+    private volatile JavaCompiler compiler;
+
+    private JavaCompilerSource(String description, Supplier<JavaCompiler> lookup) {
+        this.description = description;
+        this.lookup = lookup;
+    }
+
+    /**
+     * @return The source of the system Java compiler. There is only one such source, so its
+     *         lookup is done at most once per process.
+     */
+    public static JavaCompilerSource system() {
+        return SYSTEM;
+    }
+
+    /**
+     * @param  compiler The compiler to be provided.
+     * @return A source which provides the given compiler.
+     */
+    public static JavaCompilerSource of(JavaCompiler compiler) {
+        assert compiler != null;
+        JavaCompilerSource source = new JavaCompilerSource(compiler.toString(), () -> compiler);
+        source.compiler = compiler;
+        return source;
+    }
+
+    /**
+     * <p>Makes a source of a compiler which is loaded from the given class path by a new class
+     * loader. That class loader's parent is the platform (or, on Java 8, the extension) class
+     * loader, and it loads classes from the given class path before asking its parent (except for
+     * the {@code java} and {@code javax} packages). So the compiler is isolated from the
+     * application's class path and from the running JDK's own javac. The class loader is never
+     * closed, since the compiler's classes are needed for as long as the compiler is.
+     *
+     * <p>The one exception is the Compiler Tree API (i.e. {@code com.sun.source}), which the
+     * compiler shares with this package, so that the features of this package which use that API
+     * (e.g. {@link CompilationTaskBuilder#addTaskListener task listeners} and
+     * {@link CompilationTaskBuilder#setIncremental incremental compilation}) also work with an
+     * isolated compiler. Only those API classes which this package cannot see are loaded from the
+     * given class path. So the isolated compiler must implement the same version of that API as
+     * the running JDK's, e.g. it must be a javac of the same major version.
+     *
+     * <p>The compiler is found as a {@link JavaCompiler} service provider on the given class path,
+     * or else as javac's own implementation class, {@code com.sun.tools.javac.api.JavacTool}.
+     * Providers from outside of the given class path (e.g. the running JDK's own javac) are
+     * ignored.
+     *
+     * @param  classPath The class path from which the compiler is to be loaded, e.g. a javac jar.
+     * @return A source of the isolated compiler. It is loaded when first needed.
+     *
+     * @throws IllegalStateException When the compiler is first needed, if none can be loaded.
+     */
+    public static JavaCompilerSource isolated(URL... classPath) {
+        assert classPath != null;
+        URL[] urls = classPath.clone();
+        return new JavaCompilerSource(Arrays.toString(urls), () -> loadIsolated(urls));
+    }
+
+    /**
+     * @return The compiler of this source. It is looked up the first time this is called.
+     *
+     * @throws IllegalStateException If the compiler could not be found.
+     */
+    public JavaCompiler get() {
+        JavaCompiler result = compiler;
+        if (result == null) {
+            synchronized (this) {
+                result = compiler;
+                if (result == null) {
+                    compiler = result = lookup.get();
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "JavaCompilerSource(" + description + ")";
+    }
+
+    private static JavaCompiler loadIsolated(URL[] classPath) {
+        ClassLoader parent = ClassLoader.getSystemClassLoader().getParent();
+        URLClassLoader loader = new IsolatingClassLoader(classPath, parent);
+        for (JavaCompiler candidate : ServiceLoader.load(JavaCompiler.class, loader)) {
+            if (candidate.getClass().getClassLoader() == loader) {
+                return candidate;
+            }
+        }
+        Class<?> cls;
+        try {
+            cls = Class.forName(JAVAC_TOOL, true, loader);
+        } catch (ClassNotFoundException ex) {
+            cls = null;
+        }
+        if (cls != null && cls.getClassLoader() == loader) {
+            try {
+                return cls.asSubclass(JavaCompiler.class).getConstructor().newInstance();
+            } catch (ReflectiveOperationException | ClassCastException ex) {
+                String msg = "Failed to instantiate " + JAVAC_TOOL + " from "
+                           + Arrays.toString(classPath);
+                throw new IllegalStateException(msg, ex);
+            }
+        }
+        String msg = "No Java compiler was found on " + Arrays.toString(classPath);
+        throw new IllegalStateException(msg);
+    }
+
+
+    /**
+     * A class loader which loads classes from its own class path before asking its parent, except
+     * for the classes of the {@code java} and {@code javax} packages, which are shared so that its
+     * compiler can be used via {@link JavaCompiler} and can run the caller's processors. Loading
+     * child-first is needed since Java 9, where the platform class loader can see the running
+     * JDK's own javac.
+     *
+     * <p>The classes of the Compiler Tree API are shared too, but they are loaded by the class
+     * loader of this package (which is not the parent on Java 8, where they are in
+     * {@code tools.jar}), so that the compiler's tasks, trees and events are those which this
+     * package (and its callers) use.
+     */
+    private static final class IsolatingClassLoader extends URLClassLoader {
+
+        private static final String TREE_API_PREFIX = "com.sun.source.";
+
+        static {
+            ClassLoader.registerAsParallelCapable();
+        }
+
+        IsolatingClassLoader(URL[] classPath, ClassLoader parent) {
+            super(classPath, parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.startsWith("java.") || name.startsWith("javax.")) {
+                return super.loadClass(name, resolve);
+            }
+            if (name.startsWith(TREE_API_PREFIX)) {
+                try {
+                    return Class.forName(name, false, JavaCompilerSource.class.getClassLoader());
+                } catch (ClassNotFoundException ex) {
+                    // This package cannot see this API class (e.g. it is running on a JRE), so the
+                    // compiler's own copy is loaded instead.
+                }
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> cls = findLoadedClass(name);
+                if (cls == null) {
+                    try {
+                        cls = findClass(name);
+                    } catch (ClassNotFoundException ex) {
+                        return super.loadClass(name, resolve);
+                    }
+                }
+                if (resolve) {
+                    resolveClass(cls);
+                }
+                return cls;
+            }
+        }
+    }
+}
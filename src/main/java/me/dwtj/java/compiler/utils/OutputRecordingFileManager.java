@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.util.function.BiConsumer;
+
+/**
+ * A file manager which passes every file which it opens for output, along with the file's
+ * location, to some callback. The callback is called when the file is opened, i.e. before it has
+ * been written.
+ *
+ * @author dwtj
+ */
+final class OutputRecordingFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+    private final BiConsumer<Location, FileObject> callback;
+
+    OutputRecordingFileManager(JavaFileManager fileManager,
+                               BiConsumer<Location, FileObject> callback) {
+        super(fileManager);
+        this.callback = callback;
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                               JavaFileObject.Kind kind,
+                                               FileObject sibling) throws IOException {
+        return record(location, super.getJavaFileForOutput(location, className, kind, sibling));
+    }
+
+    @Override
+    public FileObject getFileForOutput(Location location, String packageName,
+                                       String relativeName, FileObject sibling)
+                                                                throws IOException {
+        return record(location, super.getFileForOutput(location, packageName, relativeName,
+                                                       sibling));
+    }
+
+    // As of Java 18, javac obtains its output files via these two methods instead.
+
+    public JavaFileObject getJavaFileForOutputForOriginatingFiles(
+            Location location, String className, JavaFileObject.Kind kind,
+            FileObject... originatingFiles) throws IOException {
+        return getJavaFileForOutput(location, className, kind, firstOf(originatingFiles));
+    }
+
+    public FileObject getFileForOutputForOriginatingFiles(
+            Location location, String packageName, String relativeName,
+            FileObject... originatingFiles) throws IOException {
+        return getFileForOutput(location, packageName, relativeName, firstOf(originatingFiles));
+    }
+
+    private <F extends FileObject> F record(Location location, F file) {
+        callback.accept(location, file);
+        return file;
+    }
+
+    private static FileObject firstOf(FileObject[] files) {
+        return (files == null || files.length == 0) ? null : files[0];
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import me.dwtj.java.compiler.utils.proc.AnnotationsProcessor;
+import me.dwtj.java.compiler.utils.proc.CompilationUnitsProcessor;
+import me.dwtj.java.compiler.utils.proc.UniversalProcessor;
+
+import javax.annotation.processing.Processor;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * A processor factory which knows the class name of the processors which it makes, so that the
+ * name can be found (e.g. for a {@link CompilationCache} key) without making an extra processor.
+ * The name is either given when the factory is added to a builder, or else it is learned from the
+ * first processor which the factory makes.
+ *
+ * <p>A factory may also be given an explicit cache key, which identifies its processors in a
+ * {@link CompilationCache} key instead of their class name. Processors of this library's
+ * lambda-wrapping classes (e.g. {@link UniversalProcessor}) can only be identified by such a key,
+ * since their behavior is determined by their lambdas rather than by their class.
+ *
+ * @author dwtj
+ */
+final class ProcessorFactory implements Supplier<Processor> {
+
+    /** The processor classes whose behavior is given by a lambda, so not by the class itself. */
+    private static final Set<String> WRAPPER_CLASSES = Collections.unmodifiableSet(new HashSet<>(
+            Arrays.asList(UniversalProcessor.class.getName(),
+                          CompilationUnitsProcessor.class.getName(),
+                          AnnotationsProcessor.class.getName())));
+
+    private final Supplier<? extends Processor> factory;
+    private final String cacheKey;
+    private volatile String className;
+
+    /**
+     * @param factory   The factory of the processors.
+     * @param className The class name of the processors, or {@code null} if it is not yet known.
+     */
+    ProcessorFactory(Supplier<? extends Processor> factory, String className) {
+        this(factory, className, null);
+    }
+
+    /**
+     * @param factory   The factory of the processors.
+     * @param className The class name of the processors, or {@code null} if it is not yet known.
+     * @param cacheKey  The key which identifies the processors in a cache key, or {@code null} if
+     *                  they are to be identified by their class name.
+     */
+    ProcessorFactory(Supplier<? extends Processor> factory, String className, String cacheKey) {
+        assert factory != null;
+        this.factory = factory;
+        this.className = className;
+        this.cacheKey = cacheKey;
+    }
+
+    @Override
+    public Processor get() {
+        Processor processor = factory.get();
+        if (className == null) {
+            className = processor.getClass().getName();
+        }
+        return processor;
+    }
+
+    /**
+     * @return The class name of the processors, or {@code null} if it was not given and the
+     *         factory has not yet made any processor.
+     */
+    String getClassName() {
+        return className;
+    }
+
+    /**
+     * @return The explicit cache key of the processors, else their class name if that identifies
+     *         them, else {@code null} (i.e. if they are of a lambda-wrapping class, or if the class
+     *         name is not yet known).
+     */
+    String getCacheKey() {
+        if (cacheKey != null) {
+            return cacheKey;
+        }
+        String name = className;
+        return (name == null || WRAPPER_CLASSES.contains(name)) ? null : name;
+    }
+}
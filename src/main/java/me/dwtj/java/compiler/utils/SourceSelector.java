@@ -0,0 +1,237 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import javax.lang.model.SourceVersion;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Finds the source files on some source path which are selected by package or by glob. Each
+ * source path directory is scanned once, and the scan of each directory's subdirectories is
+ * forked, so that large source trees are scanned in parallel. Subdirectories beneath which nothing
+ * could be selected are not scanned at all. Neither are subdirectories whose names are not Java
+ * identifiers (e.g. {@code .git}), since they cannot be packages.
+ *
+ * @see CompilationTaskBuilder#addPackage
+ * @see CompilationTaskBuilder#addSourceGlob
+ *
+ * @author dwtj
+ */
+final class SourceSelector {
+
+    private static final String SOURCE_EXTENSION = ".java";
+
+    private final List<String> packages;
+    private final List<String> recursivePackages;
+    private final List<String> globs;
+    private final List<PathMatcher> globMatchers;
+
+    SourceSelector(List<String> packages, List<String> recursivePackages, List<String> globs) {
+        this.packages = packages;
+        this.recursivePackages = recursivePackages;
+        this.globs = globs;
+        this.globMatchers = new ArrayList<>(globs.size());
+        for (String glob : globs) {
+            globMatchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        }
+    }
+
+    boolean isEmpty() {
+        return packages.isEmpty() && recursivePackages.isEmpty() && globs.isEmpty();
+    }
+
+    /**
+     * Scans the given source path. Where two directories on the source path both have a source
+     * file for some class, the file from the earlier directory is selected, just as javac would
+     * find it. (Entries of the source path which are not directories are ignored.)
+     *
+     * @return The selected source files, keyed by binary name, in source path order and then in
+     *         lexicographic order of their relative paths.
+     *
+     * @throws IOException If some directory could not be read, or if some package or glob did not
+     *                     select any source file.
+     */
+    Map<String, File> select(Iterable<? extends File> sourcePath) throws IOException {
+        Map<String, File> selected = new LinkedHashMap<>();
+        List<Path> selectedRelativePaths = new ArrayList<>();
+        for (File root : sourcePath) {
+            if (!root.isDirectory()) {
+                continue;
+            }
+            List<Path> found;
+            try {
+                found = ForkJoinPool.commonPool().invoke(new Scan(this, root.toPath(),
+                                                                  root.toPath()));
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+            Collections.sort(found);
+            for (Path relative : found) {
+                String binaryName = binaryNameOf(relative);
+                if (!selected.containsKey(binaryName)) {
+                    selected.put(binaryName, root.toPath().resolve(relative).toFile());
+                    selectedRelativePaths.add(relative);
+                }
+            }
+        }
+        reportUnmatched(selected, selectedRelativePaths);
+        return selected;
+    }
+
+    private void reportUnmatched(Map<String, File> selected, List<Path> relativePaths)
+                                                                            throws IOException {
+        List<String> unmatched = new ArrayList<>();
+        for (String pkg : packages) {
+            if (selected.keySet().stream().noneMatch(name -> packageOf(name).equals(pkg))) {
+                unmatched.add("package " + pkg);
+            }
+        }
+        for (String pkg : recursivePackages) {
+            if (selected.keySet().stream().noneMatch(name -> isWithin(packageOf(name), pkg))) {
+                unmatched.add("package " + pkg + " (recursive)");
+            }
+        }
+        for (int idx = 0; idx < globs.size(); idx++) {
+            PathMatcher matcher = globMatchers.get(idx);
+            if (relativePaths.stream().noneMatch(matcher::matches)) {
+                unmatched.add("glob " + globs.get(idx));
+            }
+        }
+        if (!unmatched.isEmpty()) {
+            throw new IOException("No sources found on the source path for: " + unmatched);
+        }
+    }
+
+    /** @return Whether some source file in the given package could be selected. */
+    private boolean selectsFilesIn(String pkg) {
+        return !globs.isEmpty() || packages.contains(pkg)
+                || recursivePackages.stream().anyMatch(r -> isWithin(pkg, r));
+    }
+
+    /** @return Whether some source file in or beneath the given package could be selected. */
+    private boolean selectsFilesBeneath(String pkg) {
+        return !globs.isEmpty()
+                || packages.stream().anyMatch(p -> isWithin(p, pkg))
+                || recursivePackages.stream().anyMatch(r -> isWithin(pkg, r) || isWithin(r, pkg));
+    }
+
+    private boolean isSelected(String pkg, Path relative) {
+        if (packages.contains(pkg) || recursivePackages.stream().anyMatch(r -> isWithin(pkg, r))) {
+            return true;
+        }
+        for (PathMatcher matcher : globMatchers) {
+            if (matcher.matches(relative)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return Whether {@code pkg} is {@code outer} or one of its subpackages. */
+    private static boolean isWithin(String pkg, String outer) {
+        return outer.isEmpty() || pkg.equals(outer) || pkg.startsWith(outer + ".");
+    }
+
+    private static String packageOf(String binaryName) {
+        int dot = binaryName.lastIndexOf('.');
+        return (dot < 0) ? "" : binaryName.substring(0, dot);
+    }
+
+    private static String binaryNameOf(Path relativeFile) {
+        String name = dottedNameOf(relativeFile);
+        return name.substring(0, name.length() - SOURCE_EXTENSION.length());
+    }
+
+    /** @return The given relative path's parts, joined by dots (e.g. "pkg/sub" as "pkg.sub"). */
+    private static String dottedNameOf(Path relative) {
+        StringBuilder name = new StringBuilder();
+        for (Path part : relative) {
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            name.append(part.toString());
+        }
+        return name.toString();
+    }
+
+
+    /**
+     * Scans one directory, forking a scan of each subdirectory which could hold selections. (A
+     * scan is never actually serialized, so its fields are all transient.)
+     */
+    private static final class Scan extends RecursiveTask<List<Path>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient SourceSelector selector;
+        private final transient Path root;
+        private final transient Path dir;
+
+        Scan(SourceSelector selector, Path root, Path dir) {
+            this.selector = selector;
+            this.root = root;
+            this.dir = dir;
+        }
+
+        @Override
+        protected List<Path> compute() {
+            Path relativeDir = root.relativize(dir);
+            String pkg = dottedNameOf(relativeDir);
+            boolean selectsFiles = selector.selectsFilesIn(pkg);
+            List<Path> found = new ArrayList<>();
+            List<Scan> subscans = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    if (Files.isDirectory(entry)) {
+                        if (!SourceVersion.isIdentifier(name) || SourceVersion.isKeyword(name)) {
+                            continue;
+                        }
+                        String subpkg = pkg.isEmpty() ? name : pkg + "." + name;
+                        if (selector.selectsFilesBeneath(subpkg)) {
+                            subscans.add(new Scan(selector, root, entry));
+                        }
+                    } else if (selectsFiles && name.endsWith(SOURCE_EXTENSION)) {
+                        Path relative = relativeDir.resolve(name);
+                        if (selector.isSelected(pkg, relative)) {
+                            found.add(relative);
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            for (Scan subscan : invokeAll(subscans)) {
+                found.addAll(subscan.join());
+            }
+            return found;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import me.dwtj.java.compiler.utils.CompilationTaskBuilder.StandardJavaFileManagerConfig;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static me.dwtj.java.compiler.utils.CompilationTaskBuilder.StandardJavaFileManagerConfig.makeConfig;
+
+/**
+ * <p>A pool of warm {@link StandardJavaFileManager} instances, keyed by the input locations (e.g.
+ * the class path and the source path) with which they have been configured.
+ *
+ * <p>Creating and configuring a new file manager is cheap, but its first use is not: a file manager
+ * lazily lists directories, opens and indexes archives, and finds the platform classes. A file
+ * manager which has already been used retains much of this work, so later compilations against the
+ * same locations can be much faster if they reuse it. (The {@link JavaCompiler} docs explicitly
+ * permit such reuse between compilations.)
+ *
+ * <p>A file manager is borrowed via {@link #acquire} and is returned to the pool by closing the
+ * {@link Lease} which wraps it. While a lease is open, no one else will be given its file manager,
+ * so a file manager is never used by two compilations at once. Whenever a file manager is returned,
+ * it is flushed and then made available to the next {@link #acquire} whose config has equal input
+ * locations. Output locations (e.g. the class output directory) are not part of a file manager's
+ * key; they are set anew on each lease, so that compilations which only differ in where their
+ * outputs are written still share warm file managers.
+ *
+ * <p>The number of idle file managers is capped both per config and in total. Once the total cap
+ * is reached, the idle file managers of the least recently used configs are closed first, so a
+ * long-lived pool which sees many configs over time only keeps those of its recent configs.
+ *
+ * <p>Because a pooled file manager may cache the contents of archives, it will not notice if some
+ * archive on one of its locations changes. Clients which change such files should call
+ * {@link #evict} or {@link #evictAll} so that later compilations will get fresh file managers.
+ *
+ * <p>Note that pooled file managers are not given any diagnostic listener.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @see CompilationTaskBuilder#setFileManagerPool
+ *
+ * @author dwtj
+ */
+final public class StandardJavaFileManagerPool implements Closeable {
+
+    public static final int DEFAULT_MAX_IDLE_PER_CONFIG = 4;
+
+    public static final int DEFAULT_MAX_IDLE = 16;
+
+    private final JavaCompiler compiler;
+    private final int maxIdlePerConfig;
+    private final int maxIdle;
+
+    /** Each key's idle file managers, warmest first. The least recently used key is first. */
+    private final LinkedHashMap<Map<StandardLocation, List<File>>, Deque<StandardJavaFileManager>>
+            idle = new LinkedHashMap<>(16, 0.75f, true);
+    private int idleCount = 0;
+    private boolean isClosed = false;
+
+    /**
+     * Instantiates a pool of file managers provided by the system Java compiler, with at most
+     * {@link #DEFAULT_MAX_IDLE_PER_CONFIG} idle file managers per config, and at most
+     * {@link #DEFAULT_MAX_IDLE} idle file managers in total.
+     */
+    public StandardJavaFileManagerPool() {
+        this(JavaCompilerSource.system().get(), DEFAULT_MAX_IDLE_PER_CONFIG);
+    }
+
+    /**
+     * Instantiates a pool with at most {@link #DEFAULT_MAX_IDLE} (or, if it is larger, at most
+     * {@code maxIdlePerConfig}) idle file managers in total.
+     *
+     * @param compiler         The compiler whose file managers are to be pooled.
+     * @param maxIdlePerConfig The maximum number of idle file managers which will be retained for
+     *                         any one config. Any file manager returned beyond this is closed.
+     */
+    public StandardJavaFileManagerPool(JavaCompiler compiler, int maxIdlePerConfig) {
+        this(compiler, maxIdlePerConfig, Math.max(DEFAULT_MAX_IDLE, maxIdlePerConfig));
+    }
+
+    /**
+     * @param compiler         The compiler whose file managers are to be pooled.
+     * @param maxIdlePerConfig The maximum number of idle file managers which will be retained for
+     *                         any one config. Any file manager returned beyond this is closed.
+     * @param maxIdle          The maximum number of idle file managers which will be retained in
+     *                         total. Beyond this, those of the least recently used configs are
+     *                         closed.
+     */
+    public StandardJavaFileManagerPool(JavaCompiler compiler, int maxIdlePerConfig, int maxIdle) {
+        assert compiler != null;
+        if (maxIdlePerConfig < 0) {
+            throw new IllegalArgumentException("Negative `maxIdlePerConfig`: " + maxIdlePerConfig);
+        }
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("Negative `maxIdle`: " + maxIdle);
+        }
+        this.compiler = compiler;
+        this.maxIdlePerConfig = maxIdlePerConfig;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return The compiler from which this pool's file managers are obtained.
+     */
+    public JavaCompiler getCompiler() {
+        return compiler;
+    }
+
+    /**
+     * Leases a file manager configured as specified by the given config. If an idle file manager
+     * with equal input locations is in the pool, then it is reused, and its output locations are
+     * set as specified by the given config. Otherwise, a new one is made.
+     *
+     * <p>Unlike {@link StandardJavaFileManagerConfig#config}, this does not re-initialize the given
+     * config.
+     *
+     * @param  config The config specifying the locations of the wanted file manager.
+     * @return An open lease on an appropriately configured file manager.
+     *
+     * @throws IllegalStateException
+     *            If this pool has been closed.
+     * @throws IOException
+     *            If the config attempted to set some output location to a path which does not
+     *            represent an existing directory.
+     */
+    public Lease acquire(StandardJavaFileManagerConfig config) throws IOException {
+        assert config != null;
+        StandardJavaFileManagerConfig copy = makeConfig(config);
+        Map<StandardLocation, List<File>> key = copy.inputSnapshot();
+        StandardJavaFileManager fileManager = null;
+        synchronized (this) {
+            if (isClosed) {
+                throw new IllegalStateException("This file manager pool has been closed.");
+            }
+            Deque<StandardJavaFileManager> managers = idle.get(key);
+            if (managers != null) {
+                fileManager = managers.pollFirst();
+                idleCount--;
+                if (managers.isEmpty()) {
+                    idle.remove(key);
+                }
+            }
+        }
+        if (fileManager == null) {
+            fileManager = compiler.getStandardFileManager(null, null, null);
+            try {
+                copy.apply(fileManager);
+            } catch (IOException | RuntimeException ex) {
+                closeQuietly(fileManager);
+                throw ex;
+            }
+        } else {
+            try {
+                copy.applyOutputs(fileManager);
+            } catch (IOException | RuntimeException ex) {
+                release(key, fileManager);  // Its input locations are still as they were.
+                throw ex;
+            }
+        }
+        return new Lease(key, fileManager);
+    }
+
+    /**
+     * Closes and removes all of the idle file managers which were configured with the same input
+     * locations as the given config. File managers which are currently leased are not affected,
+     * but once released, they too will be treated as usual.
+     *
+     * @param config The config whose pooled file managers should be evicted.
+     */
+    public void evict(StandardJavaFileManagerConfig config) {
+        assert config != null;
+        Deque<StandardJavaFileManager> managers;
+        synchronized (this) {
+            managers = idle.remove(config.inputSnapshot());
+            if (managers != null) {
+                idleCount -= managers.size();
+            }
+        }
+        if (managers != null) {
+            managers.forEach(StandardJavaFileManagerPool::closeQuietly);
+        }
+    }
+
+    /**
+     * Closes and removes all idle file managers from the pool.
+     */
+    public void evictAll() {
+        List<StandardJavaFileManager> managers = new ArrayList<>();
+        synchronized (this) {
+            idle.values().forEach(managers::addAll);
+            idle.clear();
+            idleCount = 0;
+        }
+        managers.forEach(StandardJavaFileManagerPool::closeQuietly);
+    }
+
+    /**
+     * Evicts all idle file managers and closes the pool. Any file manager which is released after
+     * the pool has been closed will itself simply be closed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            isClosed = true;
+        }
+        evictAll();
+    }
+
+    private void release(Map<StandardLocation, List<File>> key,
+                         StandardJavaFileManager fileManager) {
+        try {
+            fileManager.flush();
+        } catch (IOException ex) {
+            closeQuietly(fileManager);
+            return;
+        }
+        List<StandardJavaFileManager> closing = new ArrayList<>();
+        synchronized (this) {
+            Deque<StandardJavaFileManager> managers = idle.get(key);
+            if (isClosed || maxIdlePerConfig == 0 || maxIdle == 0) {
+                closing.add(fileManager);
+            } else if (managers != null && managers.size() >= maxIdlePerConfig) {
+                closing.add(fileManager);
+            } else {
+                if (managers == null) {
+                    managers = new ArrayDeque<>();
+                    idle.put(key, managers);
+                }
+                managers.addFirst(fileManager);  // Prefer the most recently used (warmest).
+                idleCount++;
+                while (idleCount > maxIdle) {
+                    closing.add(evictEldest());
+                }
+            }
+        }
+        closing.forEach(StandardJavaFileManagerPool::closeQuietly);
+    }
+
+    /**
+     * Removes the coldest idle file manager of the least recently used key. This must only be
+     * called while holding the pool's lock, and while there is some idle file manager.
+     */
+    private StandardJavaFileManager evictEldest() {
+        Iterator<Deque<StandardJavaFileManager>> keys = idle.values().iterator();
+        Deque<StandardJavaFileManager> eldest = keys.next();
+        StandardJavaFileManager fileManager = eldest.pollLast();
+        if (eldest.isEmpty()) {
+            keys.remove();
+        }
+        idleCount--;
+        return fileManager;
+    }
+
+    private static void closeQuietly(JavaFileManager fileManager) {
+        try {
+            fileManager.close();
+        } catch (IOException ex) {
+            // There is nothing more to be done with a file manager which cannot be closed.
+        }
+    }
+
+
+    /**
+     * A handle on a file manager borrowed from a {@link StandardJavaFileManagerPool}. Closing the
+     * lease returns the file manager to its pool. A lease can only be closed once; any later calls
+     * to {@link #close()} or {@link #discard()} have no effect.
+     */
+    final public class Lease implements AutoCloseable {
+
+        private final Map<StandardLocation, List<File>> key;
+        private StandardJavaFileManager fileManager;
+
+        private Lease(Map<StandardLocation, List<File>> key, StandardJavaFileManager fileManager) {
+            this.key = key;
+            this.fileManager = fileManager;
+        }
+
+        /**
+         * @return The leased file manager.
+         *
+         * @throws IllegalStateException If this lease has already been closed.
+         */
+        public synchronized StandardJavaFileManager getFileManager() {
+            if (fileManager == null) {
+                throw new IllegalStateException("This file manager lease has been closed.");
+            }
+            return fileManager;
+        }
+
+        /**
+         * Returns the leased file manager to its pool.
+         */
+        @Override
+        public void close() {
+            StandardJavaFileManager fm = take();
+            if (fm != null) {
+                release(key, fm);
+            }
+        }
+
+        /**
+         * Closes the leased file manager rather than returning it to its pool. This should be
+         * used if the file manager might have been left in some bad state.
+         */
+        public void discard() {
+            StandardJavaFileManager fm = take();
+            if (fm != null) {
+                closeQuietly(fm);
+            }
+        }
+
+        private synchronized StandardJavaFileManager take() {
+            StandardJavaFileManager fm = fileManager;
+            fileManager = null;
+            return fm;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import com.sun.source.util.JavacTask;
+
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.nio.file.Path;
+
+/**
+ * Hooks with which features of this package customize a task as it is being created by a
+ * {@link CompilationTaskTemplate}. Each hook does nothing by default.
+ *
+ * @author dwtj
+ */
+interface TaskHooks {
+
+    /**
+     * @param  fileManager The file manager which the new task would otherwise use.
+     * @return The file manager which the new task is to use instead.
+     */
+    default JavaFileManager wrapFileManager(JavaFileManager fileManager) {
+        return fileManager;
+    }
+
+    /**
+     * @param  listener The diagnostic listener which the new task would otherwise use. This may be
+     *                  {@code null}.
+     * @return The diagnostic listener which the new task is to use instead.
+     */
+    default DiagnosticListener<? super JavaFileObject> wrapDiagnosticListener(
+                                            DiagnosticListener<? super JavaFileObject> listener) {
+        return listener;
+    }
+
+    /**
+     * @param task The new task, just after its processors have been set.
+     */
+    default void configureTask(CompilationTask task) { }
+
+    /**
+     * Called when calling the task restores some output file from a {@link CompilationCache}
+     * rather than compiling it.
+     *
+     * @param location The output location to which the file was restored.
+     * @param file     The restored file.
+     */
+    default void outputRestored(StandardLocation location, Path file) { }
+
+    /**
+     * @return Hooks which apply the first hooks and then the second (either of which may be
+     *         {@code null}).
+     */
+    static TaskHooks compose(TaskHooks first, TaskHooks second) {
+        if (first == null) {
+            return second;
+        } else if (second == null) {
+            return first;
+        }
+        return new TaskHooks() {
+            @Override
+            public JavaFileManager wrapFileManager(JavaFileManager fileManager) {
+                return second.wrapFileManager(first.wrapFileManager(fileManager));
+            }
+
+            @Override
+            public DiagnosticListener<? super JavaFileObject> wrapDiagnosticListener(
+                                            DiagnosticListener<? super JavaFileObject> listener) {
+                return second.wrapDiagnosticListener(first.wrapDiagnosticListener(listener));
+            }
+
+            @Override
+            public void configureTask(CompilationTask task) {
+                first.configureTask(task);
+                second.configureTask(task);
+            }
+
+            @Override
+            public void outputRestored(StandardLocation location, Path file) {
+                first.outputRestored(location, file);
+                second.outputRestored(location, file);
+            }
+        };
+    }
+
+    /**
+     * @param  task A task which the caller needs to be a {@link JavacTask}.
+     * @return The given task, as a {@link JavacTask}.
+     *
+     * @throws IllegalStateException If the given task is not a {@link JavacTask}.
+     */
+    static JavacTask requireJavac(CompilationTask task) {
+        if (!(task instanceof JavacTask)) {
+            String msg = "This feature is only supported by javac, not by " + task.getClass();
+            throw new IllegalStateException(msg);
+        }
+        return (JavacTask) task;
+    }
+}
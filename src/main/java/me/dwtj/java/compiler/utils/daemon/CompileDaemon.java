@@ -0,0 +1,362 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.daemon;
+
+import me.dwtj.java.compiler.utils.CompilationTaskBuilder;
+import me.dwtj.java.compiler.utils.StandardJavaFileManagerPool;
+import org.apache.commons.configuration2.Configuration;
+import org.apache.commons.configuration2.PropertiesConfiguration;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.configuration2.io.FileHandler;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * <p>A long-lived server which compiles properties-style configs on behalf of other processes, so
+ * that each compilation does not need to pay for JVM startup, for loading javac, and for JIT
+ * warm-up. Each config is interpreted just as by
+ * {@link CompilationTaskBuilder#newBuilder(Configuration)}, except that relative paths are resolved
+ * against the client's working directory. Every compilation leases its file manager from one
+ * shared {@link StandardJavaFileManagerPool}, so later compilations against the same locations also
+ * reuse warm file managers.
+ *
+ * <p>The daemon only listens on the loopback interface. When it starts, it writes a <em>token
+ * file</em> (readable only by its owner, where the file system supports that) holding the port on
+ * which it listens and a random token. A client must send this token with each request, so only
+ * processes which can read the token file can use the daemon. The token file is deleted when the
+ * daemon is closed.
+ *
+ * <p>See {@link CompileDaemonClient} for the client side, and {@code Protocol} for the wire format.
+ * Diagnostics are streamed back to the client as they are reported.
+ *
+ * <p>Note that all compilations share the daemon's JVM. In particular, they share its system
+ * properties and its default charset, and processors which keep static state will see the state
+ * left by earlier compilations.
+ *
+ * @see CompileDaemonClient
+ *
+ * @author dwtj
+ */
+final public class CompileDaemon implements AutoCloseable {
+
+    /** How long to wait for a client to send its request before giving up on it. */
+    private static final int REQUEST_TIMEOUT_MILLIS = 30_000;
+
+    private static final String[] PATH_LIST_KEYS = { "source_path", "class_path" };
+    private static final String[] PATH_KEYS = { "source_output", "class_output" };
+
+    private final ServerSocket serverSocket;
+    private final File tokenFile;
+    private final byte[] token;
+    private final ExecutorService workers;
+    private final StandardJavaFileManagerPool fileManagerPool;
+    private final Thread acceptor;
+
+    private CompileDaemon(ServerSocket serverSocket, File tokenFile, String token,
+                          int parallelism) {
+        this.serverSocket = serverSocket;
+        this.tokenFile = tokenFile;
+        this.token = token.getBytes(UTF_8);
+        this.workers = Executors.newFixedThreadPool(parallelism);
+        this.fileManagerPool = new StandardJavaFileManagerPool();
+        this.acceptor = new Thread(this::acceptAll, "compile-daemon-acceptor");
+    }
+
+    /**
+     * Starts a daemon listening on the loopback interface, and writes its token file.
+     *
+     * @param  tokenFile   The file to which the daemon's port and token are to be written. It is
+     *                     replaced if it already exists.
+     * @param  port        The port on which to listen, or {@code 0} for any free port.
+     * @param  parallelism The maximum number of compilations to run at once.
+     * @return The started daemon.
+     *
+     * @throws IOException If the daemon could not listen on the port, or if the token file could
+     *                     not be written.
+     */
+    public static CompileDaemon start(File tokenFile, int port, int parallelism)
+                                                                            throws IOException {
+        assert tokenFile != null;
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Non-positive `parallelism`: " + parallelism);
+        }
+        ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        CompileDaemon daemon;
+        try {
+            daemon = new CompileDaemon(serverSocket, tokenFile, newToken(), parallelism);
+            daemon.writeTokenFile();
+        } catch (IOException | RuntimeException ex) {
+            serverSocket.close();
+            throw ex;
+        }
+        daemon.acceptor.start();
+        return daemon;
+    }
+
+    /**
+     * @return The port on which the daemon is listening.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return The file holding the daemon's port and token.
+     */
+    public File getTokenFile() {
+        return tokenFile;
+    }
+
+    /**
+     * Waits until the daemon has been closed, i.e. until it has stopped accepting requests.
+     *
+     * @throws InterruptedException If the current thread is interrupted while waiting.
+     */
+    public void awaitClose() throws InterruptedException {
+        acceptor.join();
+    }
+
+    /**
+     * Stops accepting requests and deletes the token file. Compilations which are already running
+     * are allowed to finish.
+     */
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+            // The socket is closed regardless.
+        }
+        try {
+            Files.deleteIfExists(tokenFile.toPath());
+        } catch (IOException ex) {
+            // A stale token file only names a port on which no one is listening.
+        }
+        workers.shutdown();
+        fileManagerPool.close();
+    }
+
+    /**
+     * Runs a daemon until its process is killed. The arguments are: the token file; optionally the
+     * port (default: any free port); and optionally the parallelism (default: the number of
+     * available processors).
+     *
+     * @param args The command-line arguments.
+     *
+     * @throws Exception If the daemon could not be started.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("Usage: CompileDaemon <token-file> [<port> [<parallelism>]]");
+            System.exit(2);
+        }
+        File tokenFile = new File(args[0]);
+        int port = (args.length > 1) ? Integer.parseInt(args[1]) : 0;
+        int parallelism = (args.length > 2) ? Integer.parseInt(args[2])
+                                            : Runtime.getRuntime().availableProcessors();
+        CompileDaemon daemon = start(tokenFile, port, parallelism);
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::close));
+        System.err.println("CompileDaemon: Listening on port " + daemon.getPort() + ".");
+        daemon.awaitClose();
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16))
+              .append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /** Writes the token file such that it is never visible while partially written. */
+    private void writeTokenFile() throws IOException {
+        Path target = tokenFile.getAbsoluteFile().toPath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        if (Files.getFileStore(target.getParent()).supportsFileAttributeView("posix")) {
+            Files.createFile(temp, PosixFilePermissions.asFileAttribute(
+                                           PosixFilePermissions.fromString("rw-------")));
+        } else {
+            File file = Files.createFile(temp).toFile();
+            boolean restricted = file.setReadable(false, false) && file.setReadable(true, true)
+                              && file.setWritable(false, false) && file.setWritable(true, true);
+            if (!restricted) {
+                Files.delete(temp);
+                throw new IOException("Could not restrict access to the token file: " + temp);
+            }
+        }
+        try (Writer writer = Files.newBufferedWriter(temp, UTF_8)) {
+            writer.write(Protocol.PORT_KEY + "=" + getPort() + "\n");
+            writer.write(Protocol.TOKEN_KEY + "=" + new String(token, UTF_8) + "\n");
+        }
+        Files.move(temp, target, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    private void acceptAll() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException ex) {
+                break;  // The server socket has been closed.
+            } catch (IOException ex) {
+                continue;
+            }
+            try {
+                workers.execute(() -> serve(socket));
+            } catch (RuntimeException ex) {
+                closeQuietly(socket);  // The daemon is closing.
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                                           new BufferedOutputStream(s.getOutputStream()));
+            byte[] clientToken = Protocol.readString(in).getBytes(UTF_8);
+            String workingDir = Protocol.readString(in);
+            String properties = Protocol.readString(in);
+            if (!MessageDigest.isEqual(token, clientToken)) {
+                Protocol.writeFrame(out, Protocol.ERROR, "Bad token.");
+                return;
+            }
+            s.setSoTimeout(0);  // Compilations may take arbitrarily long.
+            compile(new File(workingDir), properties, out);
+        } catch (IOException ex) {
+            // The client has gone away, so there is no one to report this to.
+        }
+    }
+
+    private void compile(File workingDir, String properties, DataOutputStream out)
+                                                                            throws IOException {
+        boolean success;
+        try {
+            Configuration config = parse(properties);
+            resolvePaths(config, workingDir);
+            CompilationTaskBuilder builder = CompilationTaskBuilder.newBuilder(config);
+            builder.setFileManagerPool(fileManagerPool);
+            builder.setDiagnosticListener(diagnostic -> {
+                try {
+                    synchronized (out) {
+                        Protocol.writeFrame(out, Protocol.DIAGNOSTIC, format(diagnostic));
+                    }
+                } catch (IOException ex) {
+                    // The client has gone away; let the compilation finish anyway.
+                }
+            });
+            success = builder.build().call();
+        } catch (Exception | AssertionError ex) {
+            synchronized (out) {
+                Protocol.writeFrame(out, Protocol.ERROR, String.valueOf(ex));
+            }
+            return;
+        }
+        synchronized (out) {
+            Protocol.writeFrame(out, Protocol.RESULT, Boolean.toString(success));
+        }
+    }
+
+    private static Configuration parse(String properties) throws ConfigurationException {
+        PropertiesConfiguration config = new PropertiesConfiguration();
+        new FileHandler(config).load(new StringReader(properties));
+        return config;
+    }
+
+    private static void resolvePaths(Configuration config, File workingDir) {
+        for (String key : PATH_LIST_KEYS) {
+            List<String> resolved = new ArrayList<>();
+            for (String path : config.getList(String.class, key, new ArrayList<>())) {
+                resolved.add(resolve(workingDir, path));
+            }
+            config.clearProperty(key);
+            for (String path : resolved) {
+                config.addProperty(key, path);
+            }
+        }
+        for (String key : PATH_KEYS) {
+            String path = config.getString(key);
+            if (path != null) {
+                config.setProperty(key, resolve(workingDir, path));
+            }
+        }
+    }
+
+    private static String resolve(File workingDir, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? path : new File(workingDir, path).getPath();
+    }
+
+    private static String format(Diagnostic<? extends JavaFileObject> diagnostic) {
+        String kind;
+        switch (diagnostic.getKind()) {
+            case ERROR:
+                kind = "error";
+                break;
+            case WARNING:
+            case MANDATORY_WARNING:
+                kind = "warning";
+                break;
+            default:
+                kind = "note";
+        }
+        String message = diagnostic.getMessage(null);
+        if (diagnostic.getSource() == null) {
+            return kind + ": " + message;
+        }
+        String source = diagnostic.getSource().toUri().getPath();
+        return source + ":" + diagnostic.getLineNumber() + ": " + kind + ": " + message;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Nothing else can be done.
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.daemon;
+
+import me.dwtj.java.compiler.utils.CompilationTaskBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * <p>A client which asks a running {@link CompileDaemon} to compile properties-style configs.
+ *
+ * <p>The client itself is very cheap: it only needs to read the daemon's token file and to open a
+ * loopback connection for each request. So a build step which would otherwise launch a JVM just to
+ * call {@link CompilationTaskBuilder#newBuilder(File)} can instead run {@link #main} (or call
+ * {@link #compile(File, Consumer)}) and pay for neither loading javac nor warming it up.
+ *
+ * @see CompileDaemon
+ *
+ * @author dwtj
+ */
+final public class CompileDaemonClient {
+
+    private final int port;
+    private final String token;
+
+    /**
+     * @param tokenFile The token file written by a running daemon.
+     *
+     * @throws IOException If the token file could not be read.
+     */
+    public CompileDaemonClient(File tokenFile) throws IOException {
+        assert tokenFile != null;
+        Properties props = Protocol.readTokenFile(tokenFile);
+        try {
+            this.port = Integer.parseInt(props.getProperty(Protocol.PORT_KEY));
+        } catch (NumberFormatException ex) {
+            throw new IOException("Not a compile daemon token file: " + tokenFile, ex);
+        }
+        this.token = props.getProperty(Protocol.TOKEN_KEY);
+    }
+
+    /**
+     * Asks the daemon to compile the given config file. Relative paths in the config are resolved
+     * against the current working directory.
+     *
+     * @param  configFile  A properties-style config, as read by
+     *                     {@link CompilationTaskBuilder#newBuilder(File)}.
+     * @param  diagnostics Is given each diagnostic (formatted as a single string) as soon as it is
+     *                     received from the daemon.
+     * @return Whether compilation succeeded.
+     *
+     * @throws IOException If the config file could not be read, if the daemon could not be reached,
+     *                     or if the daemon could not compile the config at all (e.g. because some
+     *                     class could not be found on the source path).
+     */
+    public boolean compile(File configFile, Consumer<String> diagnostics) throws IOException {
+        String properties = new String(Files.readAllBytes(configFile.toPath()), UTF_8);
+        return compile(properties, new File("").getAbsoluteFile(), diagnostics);
+    }
+
+    /**
+     * Asks the daemon to compile the given config.
+     *
+     * @param  properties  The text of a properties-style config.
+     * @param  workingDir  The directory against which relative paths in the config are resolved.
+     * @param  diagnostics Is given each diagnostic (formatted as a single string) as soon as it is
+     *                     received from the daemon.
+     * @return Whether compilation succeeded.
+     *
+     * @throws IOException If the daemon could not be reached, or if it could not compile the config
+     *                     at all.
+     */
+    public boolean compile(String properties, File workingDir, Consumer<String> diagnostics)
+                                                                            throws IOException {
+        assert properties != null;
+        assert workingDir != null;
+        assert diagnostics != null;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataOutputStream out = new DataOutputStream(
+                                           new BufferedOutputStream(socket.getOutputStream()));
+            Protocol.writeString(out, token);
+            Protocol.writeString(out, workingDir.getAbsolutePath());
+            Protocol.writeString(out, properties);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(
+                                         new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                byte tag = in.readByte();
+                String payload = Protocol.readString(in);
+                switch (tag) {
+                    case Protocol.DIAGNOSTIC:
+                        diagnostics.accept(payload);
+                        break;
+                    case Protocol.RESULT:
+                        return Boolean.parseBoolean(payload);
+                    case Protocol.ERROR:
+                        throw new IOException("The compile daemon failed: " + payload);
+                    default:
+                        throw new IOException("Unknown frame from the compile daemon: " + tag);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles a config file via a running daemon, printing diagnostics to standard error. The
+     * arguments are the daemon's token file and the config file. The exit status is {@code 0} if
+     * compilation succeeded, {@code 1} if it failed, and {@code 2} if the daemon could not compile
+     * the config at all.
+     *
+     * @param args The command-line arguments.
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: CompileDaemonClient <token-file> <config-file>");
+            System.exit(2);
+        }
+        try {
+            CompileDaemonClient client = new CompileDaemonClient(new File(args[0]));
+            boolean success = client.compile(new File(args[1]), System.err::println);
+            System.exit(success ? 0 : 1);
+        } catch (IOException ex) {
+            System.err.println("CompileDaemonClient: " + ex.getMessage());
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.daemon;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * <p>The wire format spoken between a {@link CompileDaemon} and a {@link CompileDaemonClient}.
+ * Each connection carries exactly one request and its response. All integers are big-endian, and
+ * every string is sent as its length in bytes (an {@code int}) followed by its UTF-8 encoding.
+ *
+ * <p>A request is three strings: the daemon's token, the client's working directory (against which
+ * relative paths in the config are resolved), and the text of a properties-style config.
+ *
+ * <p>A response is a sequence of frames, each of which is a one-byte tag followed by a string.
+ * Zero or more {@link #DIAGNOSTIC} frames (one per diagnostic, in the order in which they were
+ * reported) are followed by exactly one {@link #RESULT} or {@link #ERROR} frame, after which the
+ * daemon closes the connection.
+ *
+ * @author dwtj
+ */
+final class Protocol {
+
+    /** A frame holding one diagnostic, formatted much as javac would print it. */
+    static final byte DIAGNOSTIC = 'D';
+
+    /** The final frame of a compilation which was called: either "true" or "false". */
+    static final byte RESULT = 'R';
+
+    /** The final frame of a request which could not be compiled: a description of the problem. */
+    static final byte ERROR = 'E';
+
+    /** Strings longer than this are refused, so a bad peer cannot exhaust the daemon's memory. */
+    static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+
+    /** The keys of the token file which a daemon writes so that clients can find it. */
+    static final String PORT_KEY = "port";
+    static final String TOKEN_KEY = "token";
+
+    private Protocol() { }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Bad string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    static void writeFrame(DataOutputStream out, byte tag, String payload) throws IOException {
+        out.writeByte(tag);
+        writeString(out, payload);
+        out.flush();
+    }
+
+    static Properties readTokenFile(File tokenFile) throws IOException {
+        Properties props = new Properties();
+        try (Reader reader = Files.newBufferedReader(tokenFile.toPath(), StandardCharsets.UTF_8)) {
+            props.load(reader);
+        }
+        if (props.getProperty(PORT_KEY) == null || props.getProperty(TOKEN_KEY) == null) {
+            throw new IOException("Not a compile daemon token file: " + tokenFile);
+        }
+        return props;
+    }
+}
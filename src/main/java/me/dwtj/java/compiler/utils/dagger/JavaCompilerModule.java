@@ -0,0 +1,39 @@
+package me.dwtj.java.compiler.utils.dagger;
+
+import dagger.Module;
+import dagger.Provides;
+import me.dwtj.java.compiler.utils.CompilationTaskBuilder;
+import me.dwtj.java.compiler.utils.JavaCompilerSource;
+
+import javax.inject.Singleton;
+import javax.tools.JavaCompiler;
+
+/**
+ * A dagger dependency injection module which provides a {@link JavaCompiler} from some
+ * {@link JavaCompilerSource}, so that a compiler can be resolved once and injected wherever it is
+ * needed, e.g. into code which then passes it to {@link CompilationTaskBuilder#setCompilerSource}.
+ *
+ * @author dwtj
+ */
+@Module
+public class JavaCompilerModule {
+
+    protected final JavaCompilerSource compilerSource;
+
+    /** Provides the system Java compiler. */
+    public JavaCompilerModule() {
+        this(JavaCompilerSource.system());
+    }
+
+    public JavaCompilerModule(JavaCompilerSource compilerSource) {
+        this.compilerSource = compilerSource;
+    }
+
+    @Provides @Singleton public JavaCompilerSource provideCompilerSource() {
+        return compilerSource;
+    }
+
+    @Provides @Singleton public JavaCompiler provideCompiler(JavaCompilerSource compilerSource) {
+        return compilerSource.get();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.diag;
+
+import javax.tools.Diagnostic;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * <p>A diagnostic listener which keeps a {@link CompactDiagnostic} copy of each diagnostic which it
+ * is given, rather than the diagnostic itself, so that a finished compilation's files and trees
+ * are not kept in memory by its diagnostics. All of the compact diagnostics of one source file
+ * share a single source name string.
+ *
+ * <p>The number of diagnostics which are kept can be capped per kind, e.g. to keep every error but
+ * only the first hundred warnings. Diagnostics beyond a kind's cap are still counted, but they are
+ * dropped. Each diagnostic can also be passed to a sink as soon as it is reported (whether or not
+ * it is kept), so that clients can stream diagnostics, e.g. to a log, without keeping any of them.
+ *
+ * <p>By default, every diagnostic is kept. This class is thread-safe.
+ *
+ * @see javax.tools.DiagnosticCollector
+ * @see me.dwtj.java.compiler.utils.CompilationTaskBuilder#setDiagnosticListener
+ *
+ * @author dwtj
+ */
+final public class BoundedDiagnosticCollector implements DiagnosticListener<JavaFileObject> {
+
+    private static final Kind[] KINDS = Kind.values();
+
+    private final int[] limits = new int[KINDS.length];
+    private final int[] reported = new int[KINDS.length];
+    private final int[] dropped = new int[KINDS.length];
+    private final List<CompactDiagnostic> kept = new ArrayList<>();
+    private final Map<String, String> sourceNames = new HashMap<>();
+    private Consumer<? super CompactDiagnostic> sink = null;
+
+    /**
+     * Instantiates a collector which keeps every diagnostic.
+     */
+    public BoundedDiagnosticCollector() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param limitPerKind The most diagnostics of each kind which are to be kept.
+     */
+    public BoundedDiagnosticCollector(int limitPerKind) {
+        checkLimit(limitPerKind);
+        Arrays.fill(limits, limitPerKind);
+    }
+
+    /**
+     * Sets the most diagnostics of the given kind which are to be kept. This does not drop any of
+     * those which have already been kept.
+     *
+     * @param kind  The kind of diagnostic.
+     * @param limit The most diagnostics of that kind which are to be kept.
+     */
+    public synchronized void setLimit(Kind kind, int limit) {
+        assert kind != null;
+        checkLimit(limit);
+        limits[kind.ordinal()] = limit;
+    }
+
+    /**
+     * Sets the consumer to which each diagnostic is passed as soon as it is reported, whether or
+     * not it is kept. The sink is called on the reporting thread (e.g. the compiler's thread), one
+     * diagnostic at a time, in the order in which they are reported.
+     *
+     * <p>By default, there is no sink. Passing {@code null} restores this default.
+     *
+     * @param sink The consumer of every reported diagnostic.
+     */
+    public synchronized void setSink(Consumer<? super CompactDiagnostic> sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public synchronized void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+        int idx = diagnostic.getKind().ordinal();
+        boolean keep = (reported[idx] - dropped[idx]) < limits[idx];
+        reported[idx]++;
+        if (!keep) {
+            dropped[idx]++;
+            if (sink == null) {
+                return;  // There is no need to even copy the diagnostic.
+            }
+        }
+        String source = CompactDiagnostic.sourceNameOf(diagnostic.getSource());
+        if (source != null) {
+            source = sourceNames.computeIfAbsent(source, s -> s);
+        }
+        CompactDiagnostic compact = CompactDiagnostic.of(diagnostic, source);
+        if (keep) {
+            kept.add(compact);
+        }
+        if (sink != null) {
+            sink.accept(compact);
+        }
+    }
+
+    /**
+     * @return A snapshot of the kept diagnostics, in the order in which they were reported.
+     */
+    public synchronized List<CompactDiagnostic> getDiagnostics() {
+        return unmodifiableList(new ArrayList<>(kept));
+    }
+
+    /**
+     * @param  kind The kind of diagnostic.
+     * @return A snapshot of the kept diagnostics of the given kind, in the order in which they were
+     *         reported.
+     */
+    public synchronized List<CompactDiagnostic> getDiagnostics(Kind kind) {
+        List<CompactDiagnostic> ofKind = new ArrayList<>();
+        for (CompactDiagnostic diagnostic : kept) {
+            if (diagnostic.getKind() == kind) {
+                ofKind.add(diagnostic);
+            }
+        }
+        return unmodifiableList(ofKind);
+    }
+
+    /**
+     * @param  kind The kind of diagnostic.
+     * @return The number of diagnostics of the given kind which have been reported, including any
+     *         which were dropped.
+     */
+    public synchronized int getReportedCount(Kind kind) {
+        return reported[kind.ordinal()];
+    }
+
+    /**
+     * @param  kind The kind of diagnostic.
+     * @return The number of diagnostics of the given kind which were reported but not kept.
+     */
+    public synchronized int getDroppedCount(Kind kind) {
+        return dropped[kind.ordinal()];
+    }
+
+    /**
+     * @return Whether any errors have been reported, whether or not they were kept.
+     */
+    public synchronized boolean hasErrors() {
+        return reported[Kind.ERROR.ordinal()] > 0;
+    }
+
+    /**
+     * Forgets all of the kept diagnostics and resets all counts. The limits and sink are kept.
+     */
+    public synchronized void clear() {
+        kept.clear();
+        sourceNames.clear();
+        Arrays.fill(reported, 0);
+        Arrays.fill(dropped, 0);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("BoundedDiagnosticCollector{");
+        for (Kind kind : KINDS) {
+            int count = reported[kind.ordinal()];
+            if (count > 0) {
+                sb.append(kind).append('=').append(count);
+                if (dropped[kind.ordinal()] > 0) {
+                    sb.append(" (").append(dropped[kind.ordinal()]).append(" dropped)");
+                }
+                sb.append(", ");
+            }
+        }
+        if (sb.charAt(sb.length() - 1) == ' ') {
+            sb.setLength(sb.length() - 2);
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void checkLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Negative diagnostic limit: " + limit);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.diag;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.net.URI;
+import java.util.Locale;
+
+/**
+ * <p>An immutable copy of just the essential parts of some {@link Diagnostic}: its kind, its
+ * position, its code and its message. The source of a compact diagnostic is only the path (or
+ * name) of the original diagnostic's source file.
+ *
+ * <p>A diagnostic reported by javac refers to its source {@link JavaFileObject}, and through that
+ * (and through its message's arguments) to much of the compiler's state, e.g. the file's contents
+ * and its trees. So keeping the original diagnostics after a compilation keeps all of that in
+ * memory too. A compact diagnostic doesn't.
+ *
+ * <p>The message is rendered once, in the default locale, when the compact diagnostic is made. So,
+ * {@link #getMessage} ignores its locale.
+ *
+ * @see BoundedDiagnosticCollector
+ *
+ * @author dwtj
+ */
+final public class CompactDiagnostic implements Diagnostic<String> {
+
+    private final Kind kind;
+    private final String source;
+    private final long position;
+    private final long startPosition;
+    private final long endPosition;
+    private final long lineNumber;
+    private final long columnNumber;
+    private final String code;
+    private final String message;
+
+    /**
+     * @param kind          The kind of the diagnostic.
+     * @param source        The path or name of the diagnostic's source file, or {@code null} if
+     *                      there is none.
+     * @param position      As given by {@link Diagnostic#getPosition()}.
+     * @param startPosition As given by {@link Diagnostic#getStartPosition()}.
+     * @param endPosition   As given by {@link Diagnostic#getEndPosition()}.
+     * @param lineNumber    As given by {@link Diagnostic#getLineNumber()}.
+     * @param columnNumber  As given by {@link Diagnostic#getColumnNumber()}.
+     * @param code          The diagnostic's code, or {@code null} if there is none.
+     * @param message       The diagnostic's message.
+     */
+    public CompactDiagnostic(Kind kind, String source, long position, long startPosition,
+                             long endPosition, long lineNumber, long columnNumber, String code,
+                             String message) {
+        assert kind != null;
+        assert message != null;
+        this.kind = kind;
+        this.source = source;
+        this.position = position;
+        this.startPosition = startPosition;
+        this.endPosition = endPosition;
+        this.lineNumber = lineNumber;
+        this.columnNumber = columnNumber;
+        this.code = code;
+        this.message = message;
+    }
+
+    /**
+     * @param  diagnostic The diagnostic to be copied.
+     * @return A compact copy of the given diagnostic.
+     */
+    public static CompactDiagnostic of(Diagnostic<? extends JavaFileObject> diagnostic) {
+        return of(diagnostic, sourceNameOf(diagnostic.getSource()));
+    }
+
+    /**
+     * Like {@link #of(Diagnostic)}, except that the given source name is used rather than one
+     * found from the diagnostic's source. This lets callers share one name string between all of
+     * the diagnostics of some source file.
+     */
+    static CompactDiagnostic of(Diagnostic<? extends JavaFileObject> diagnostic, String source) {
+        return new CompactDiagnostic(diagnostic.getKind(),
+                                     source,
+                                     diagnostic.getPosition(),
+                                     diagnostic.getStartPosition(),
+                                     diagnostic.getEndPosition(),
+                                     diagnostic.getLineNumber(),
+                                     diagnostic.getColumnNumber(),
+                                     diagnostic.getCode(),
+                                     String.valueOf(diagnostic.getMessage(null)));
+    }
+
+    /**
+     * @return The path of the given file if it has one, or else its name, or {@code null} if there
+     *         is no file.
+     */
+    static String sourceNameOf(JavaFileObject file) {
+        if (file == null) {
+            return null;
+        }
+        URI uri = file.toUri();
+        String path = (uri == null) ? null : uri.getPath();
+        return (path == null) ? file.getName() : path;
+    }
+
+    @Override
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return The path (or name) of the diagnostic's source file, or {@code null} if there is none.
+     */
+    @Override
+    public String getSource() {
+        return source;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    @Override
+    public long getStartPosition() {
+        return startPosition;
+    }
+
+    @Override
+    public long getEndPosition() {
+        return endPosition;
+    }
+
+    @Override
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    @Override
+    public long getColumnNumber() {
+        return columnNumber;
+    }
+
+    @Override
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * @param  locale Ignored; the message was rendered when the diagnostic was copied.
+     * @return The diagnostic's message.
+     */
+    @Override
+    public String getMessage(Locale locale) {
+        return message;
+    }
+
+    /**
+     * @return The diagnostic as javac would print it, e.g. {@code "Foo.java:12: error: ..."}.
+     */
+    @Override
+    public String toString() {
+        String prefix;
+        switch (kind) {
+            case ERROR:
+                prefix = "error: ";
+                break;
+            case WARNING:
+            case MANDATORY_WARNING:
+                prefix = "warning: ";
+                break;
+            default:
+                prefix = "note: ";
+        }
+        if (source == null) {
+            return prefix + message;
+        } else if (lineNumber == NOPOS) {
+            return source + ": " + prefix + message;
+        } else {
+            return source + ":" + lineNumber + ": " + prefix + message;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.mem;
+
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import java.net.URI;
+
+/**
+ * A {@link JavaFileObject} source file whose contents are held in memory as a
+ * {@link CharSequence}, rather than being read from disk.
+ *
+ * @author dwtj
+ */
+final public class CharSequenceSource extends SimpleJavaFileObject {
+
+    private final String className;
+    private final CharSequence code;
+
+    /**
+     * @param className The fully-qualified name of the (top-level) class which is declared by the
+     *                  given code, e.g. {@code pkg.subpkg.MyCls}. This determines the name of the
+     *                  source file, i.e. {@code pkg/subpkg/MyCls.java}.
+     * @param code      The contents of the source file.
+     */
+    public CharSequenceSource(String className, CharSequence code) {
+        super(URI.create(InMemoryOutput.SCHEME + ":///" + className.replace('.', '/')
+                                                           + Kind.SOURCE.extension),
+              Kind.SOURCE);
+        assert code != null;
+        this.className = className;
+        this.code = code;
+    }
+
+    /**
+     * @return The fully-qualified name of the class declared by this source file.
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return code;
+    }
+}
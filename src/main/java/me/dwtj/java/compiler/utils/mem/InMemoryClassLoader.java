@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.mem;
+
+/**
+ * A class loader which defines classes from the class files held by some {@link InMemoryOutput}.
+ * As usual, the class loader first delegates to its parent.
+ *
+ * @see InMemoryOutput#newClassLoader
+ *
+ * @author dwtj
+ */
+final class InMemoryClassLoader extends ClassLoader {
+
+    private final InMemoryOutput output;
+
+    InMemoryClassLoader(InMemoryOutput output, ClassLoader parent) {
+        super(parent);
+        assert output != null;
+        this.output = output;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        byte[] bytes = output.getClassFile(name);
+        if (bytes == null) {
+            throw new ClassNotFoundException(name);
+        }
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.mem;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+import static javax.tools.StandardLocation.SOURCE_OUTPUT;
+
+/**
+ * <p>A file manager which keeps everything written to the {@link StandardLocation#CLASS_OUTPUT
+ * CLASS_OUTPUT} and {@link StandardLocation#SOURCE_OUTPUT SOURCE_OUTPUT} locations in memory, in
+ * some {@link InMemoryOutput}. Nothing is written to disk. All other locations (e.g. the class path
+ * and the platform classes) are handled by the delegate file manager as usual.
+ *
+ * <p>Source files written to {@code SOURCE_OUTPUT} (e.g. by an annotation processor) can be read
+ * back, so they can be compiled in later rounds of the same compilation task.
+ *
+ * <p>Source files to be compiled can also be kept in memory; see {@link CharSequenceSource}.
+ *
+ * @author dwtj
+ */
+final public class InMemoryJavaFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+    private final InMemoryOutput output;
+
+    /**
+     * @param delegate The file manager to which all non-output locations are delegated.
+     * @param output   The container into which all output files will be written.
+     */
+    public InMemoryJavaFileManager(JavaFileManager delegate, InMemoryOutput output) {
+        super(delegate);
+        assert output != null;
+        this.output = output;
+    }
+
+    /**
+     * @return The container into which all output files are written.
+     */
+    public InMemoryOutput getOutput() {
+        return output;
+    }
+
+    @Override
+    public boolean hasLocation(Location location) {
+        return isInMemory(location) || super.hasLocation(location);
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForInput(Location location, String className,
+                                              JavaFileObject.Kind kind) throws IOException {
+        if (!isInMemory(location)) {
+            return super.getJavaFileForInput(location, className, kind);
+        }
+        String path = className.replace('.', '/') + kind.extension;
+        return output.filesOf((StandardLocation) location).containsKey(path)
+                ? new OutputFile((StandardLocation) location, path, kind)
+                : null;
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                               JavaFileObject.Kind kind, FileObject sibling)
+                                                                    throws IOException {
+        if (!isInMemory(location)) {
+            return super.getJavaFileForOutput(location, className, kind, sibling);
+        }
+        String path = className.replace('.', '/') + kind.extension;
+        return new OutputFile((StandardLocation) location, path, kind);
+    }
+
+    @Override
+    public FileObject getFileForInput(Location location, String packageName,
+                                      String relativeName) throws IOException {
+        if (!isInMemory(location)) {
+            return super.getFileForInput(location, packageName, relativeName);
+        }
+        String path = toPath(packageName, relativeName);
+        return output.filesOf((StandardLocation) location).containsKey(path)
+                ? new OutputFile((StandardLocation) location, path, JavaFileObject.Kind.OTHER)
+                : null;
+    }
+
+    @Override
+    public FileObject getFileForOutput(Location location, String packageName,
+                                       String relativeName, FileObject sibling)
+                                                                    throws IOException {
+        if (!isInMemory(location)) {
+            return super.getFileForOutput(location, packageName, relativeName, sibling);
+        }
+        String path = toPath(packageName, relativeName);
+        return new OutputFile((StandardLocation) location, path, JavaFileObject.Kind.OTHER);
+    }
+
+    /**
+     * As of Java 18, javac obtains its output files via this method (rather than via
+     * {@link #getJavaFileForOutput}), and the inherited implementation would bypass this file
+     * manager's in-memory locations.
+     *
+     * @param location         The output location.
+     * @param className        The name of the class or interface to be written.
+     * @param kind             The kind of file to be written.
+     * @param originatingFiles The files from which the output was generated.
+     * @return A file object for output.
+     * @throws IOException If an I/O error occurs.
+     */
+    public JavaFileObject getJavaFileForOutputForOriginatingFiles(Location location,
+                                                                  String className,
+                                                                  JavaFileObject.Kind kind,
+                                                                  FileObject... originatingFiles)
+                                                                    throws IOException {
+        return getJavaFileForOutput(location, className, kind, firstOf(originatingFiles));
+    }
+
+    /**
+     * As of Java 18, javac obtains its output files via this method (rather than via
+     * {@link #getFileForOutput}), and the inherited implementation would bypass this file
+     * manager's in-memory locations.
+     *
+     * @param location         The output location.
+     * @param packageName      The name of the package of the file to be written.
+     * @param relativeName     The name of the file to be written, relative to the package.
+     * @param originatingFiles The files from which the output was generated.
+     * @return A file object for output.
+     * @throws IOException If an I/O error occurs.
+     */
+    public FileObject getFileForOutputForOriginatingFiles(Location location,
+                                                          String packageName,
+                                                          String relativeName,
+                                                          FileObject... originatingFiles)
+                                                                    throws IOException {
+        return getFileForOutput(location, packageName, relativeName, firstOf(originatingFiles));
+    }
+
+    @Override
+    public String inferBinaryName(Location location, JavaFileObject file) {
+        if (file instanceof OutputFile) {
+            String path = ((OutputFile) file).path;
+            return path.substring(0, path.lastIndexOf('.')).replace('/', '.');
+        }
+        return super.inferBinaryName(location, file);
+    }
+
+    @Override
+    public boolean isSameFile(FileObject a, FileObject b) {
+        if (a instanceof OutputFile || b instanceof OutputFile
+                || a instanceof CharSequenceSource || b instanceof CharSequenceSource) {
+            return a.toUri().equals(b.toUri());
+        }
+        return super.isSameFile(a, b);
+    }
+
+    private static boolean isInMemory(Location location) {
+        return location == CLASS_OUTPUT || location == SOURCE_OUTPUT;
+    }
+
+    private static String toPath(String packageName, String relativeName) {
+        return packageName.isEmpty() ? relativeName
+                                     : packageName.replace('.', '/') + '/' + relativeName;
+    }
+
+    private static FileObject firstOf(FileObject[] files) {
+        return (files == null || files.length == 0) ? null : files[0];
+    }
+
+
+    /** A file object whose contents are kept in one of the maps of this manager's output. */
+    private final class OutputFile extends SimpleJavaFileObject {
+
+        private final StandardLocation location;
+        private final String path;
+
+        private OutputFile(StandardLocation location, String path, Kind kind) {
+            super(URI.create(InMemoryOutput.SCHEME + ":///" + location.getName() + "/" + path),
+                  kind);
+            this.location = location;
+            this.path = path;
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    output.filesOf(location).put(path, toByteArray());
+                }
+            };
+        }
+
+        @Override
+        public Writer openWriter() {
+            return new OutputStreamWriter(openOutputStream(), UTF_8);
+        }
+
+        @Override
+        public InputStream openInputStream() throws FileNotFoundException {
+            return new ByteArrayInputStream(contents());
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors)
+                                                                throws FileNotFoundException {
+            return new String(contents(), UTF_8);
+        }
+
+        @Override
+        public long getLastModified() {
+            return 0L;
+        }
+
+        @Override
+        public boolean delete() {
+            return output.filesOf(location).remove(path) != null;
+        }
+
+        private byte[] contents() throws FileNotFoundException {
+            Map<String, byte[]> files = output.filesOf(location);
+            byte[] bytes = files.get(path);
+            if (bytes == null) {
+                throw new FileNotFoundException(toUri().toString());
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.mem;
+
+import javax.tools.StandardLocation;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Collections.unmodifiableMap;
+import static javax.tools.JavaFileObject.Kind.CLASS;
+
+/**
+ * <p>A container for the files which a compilation task writes to its {@link
+ * StandardLocation#CLASS_OUTPUT CLASS_OUTPUT} and {@link StandardLocation#SOURCE_OUTPUT
+ * SOURCE_OUTPUT} locations when it is using an {@link InMemoryJavaFileManager}.
+ *
+ * <p>Each location's files are kept in a map from the file's path (relative to the location and
+ * using {@code '/'} as the separator, e.g. {@code pkg/subpkg/MyCls.class}) to the file's contents.
+ * A file's contents become visible here once the stream writing them has been closed.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @author dwtj
+ */
+final public class InMemoryOutput {
+
+    /** The URI scheme given to all in-memory file objects. */
+    static final String SCHEME = "mem";
+
+    private final Map<String, byte[]> classOutput = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> sourceOutput = new ConcurrentHashMap<>();
+
+    /**
+     * @return An unmodifiable view of the files written to the {@code CLASS_OUTPUT} location.
+     */
+    public Map<String, byte[]> getClassOutput() {
+        return unmodifiableMap(classOutput);
+    }
+
+    /**
+     * @return An unmodifiable view of the files written to the {@code SOURCE_OUTPUT} location.
+     */
+    public Map<String, byte[]> getSourceOutput() {
+        return unmodifiableMap(sourceOutput);
+    }
+
+    /**
+     * @param  binaryName The binary name of some class, e.g. {@code pkg.MyCls$Inner}.
+     * @return The contents of the class file which was written for the named class, or {@code null}
+     *         if no such class file has been written.
+     */
+    public byte[] getClassFile(String binaryName) {
+        return classOutput.get(binaryName.replace('.', '/') + CLASS.extension);
+    }
+
+    /**
+     * Makes a class loader which defines classes from the class files held here.
+     *
+     * @param  parent The parent of the new class loader.
+     * @return The new class loader.
+     */
+    public ClassLoader newClassLoader(ClassLoader parent) {
+        return new InMemoryClassLoader(this, parent);
+    }
+
+    /**
+     * Removes all of the files held here.
+     */
+    public void clear() {
+        classOutput.clear();
+        sourceOutput.clear();
+    }
+
+    /**
+     * @param  location Either {@code CLASS_OUTPUT} or {@code SOURCE_OUTPUT}.
+     * @return The (mutable) map holding the given location's files.
+     */
+    Map<String, byte[]> filesOf(StandardLocation location) {
+        switch (location) {
+            case CLASS_OUTPUT:
+                return classOutput;
+            case SOURCE_OUTPUT:
+                return sourceOutput;
+            default:
+                throw new IllegalArgumentException("Not an in-memory location: " + location);
+        }
+    }
+}
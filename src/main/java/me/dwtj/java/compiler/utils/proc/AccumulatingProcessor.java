@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.proc;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.TypeElement;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+
+/**
+ * <p>This processor is a helper class for whole-program analyses, i.e. analyses which need the
+ * results from every round of a compilation task rather than from one round at a time.
+ *
+ * <p>In each round, a user-defined task produces a stream of results. Each result is accumulated
+ * into a single container by a {@link Collector}, so no state needs to be kept in the task itself.
+ * Once processing is over (i.e. in the round in which {@link RoundEnvironment#processingOver()} is
+ * {@code true}), the container is finished by the collector, and the final result is delivered
+ * exactly once, on the compiler's thread, to a user-defined consumer. For example, to gather the
+ * names of all root elements of all rounds:
+ *
+ * <pre>{@code
+ * new AccumulatingProcessor<>(
+ *     (procEnv, roundEnv) -> roundEnv.getRootElements().stream().map(e -> e.toString()),
+ *     Collectors.toList(),
+ *     (procEnv, names) -> ...);
+ * }</pre>
+ *
+ * <p>The task is also run in the final round (even though the final round has no root elements)
+ * unless this processor's {@link RoundMode} excludes that round. The result is delivered whatever
+ * the round mode, and even if errors were raised in some earlier round.
+ *
+ * <p>Memory can be bounded by calling {@link #setSpillThreshold}. Results are accumulated one at a
+ * time as the task's stream is consumed, so a task which lazily produces many results need never
+ * hold them all at once.
+ *
+ * @param <T> The type of the results produced by the task in each round.
+ * @param <A> The collector's mutable accumulation type.
+ * @param <R> The type of the final result.
+ *
+ * @see Collector
+ * @see UniversalProcessor
+ *
+ * @author dwtj
+ */
+public class AccumulatingProcessor<T, A, R> extends UniversalProcessor {
+
+    private final Dispatcher<T, A, R> dispatcher;
+
+    /**
+     * @param task      The task which produces each round's results.
+     * @param collector The collector into which all rounds' results are accumulated. Its
+     *                  combiner is never called.
+     * @param finisher  The consumer to which the final result is delivered once processing is
+     *                  over.
+     */
+    public AccumulatingProcessor(
+                BiFunction<ProcessingEnvironment, RoundEnvironment, Stream<? extends T>> task,
+                Collector<? super T, A, R> collector,
+                BiConsumer<ProcessingEnvironment, ? super R> finisher) {
+        this(new Dispatcher<>(task, collector, finisher));
+    }
+
+    private AccumulatingProcessor(Dispatcher<T, A, R> dispatcher) {
+        super(dispatcher);
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * <p>Bounds the number of results which are held in the container at any one time. Whenever
+     * {@code threshold} results have been accumulated, the container is passed (unfinished) to the
+     * given consumer, e.g. to be written to disk or merged into some external store, and then
+     * accumulation continues in a new container from the collector's supplier. Only the results
+     * accumulated after the last spill are finished and delivered once processing is over.
+     *
+     * <p>By default, nothing is ever spilled, so the delivered result covers every round.
+     *
+     * @param threshold The number of results after which the container is spilled.
+     * @param spill     The consumer to which each full container is passed.
+     *
+     * @throws IllegalArgumentException If the threshold is not positive.
+     */
+    public void setSpillThreshold(int threshold, Consumer<? super A> spill) {
+        assert spill != null;
+        if (threshold <= 0) {
+            String msg = "The spill threshold must be positive: " + threshold;
+            throw new IllegalArgumentException(msg);
+        }
+        dispatcher.spillThreshold = threshold;
+        dispatcher.spill = spill;
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        super.process(annotations, roundEnv);
+        if (roundEnv.processingOver()) {
+            dispatcher.deliver(processingEnv);
+        }
+        return false;
+    }
+
+    /** Holds the container, and accumulates each round's results into it as they are produced. */
+    private static final class Dispatcher<T, A, R>
+            implements BiConsumer<ProcessingEnvironment, RoundEnvironment> {
+
+        private final BiFunction<ProcessingEnvironment, RoundEnvironment, Stream<? extends T>> task;
+        private final Collector<? super T, A, R> collector;
+        private final BiConsumer<ProcessingEnvironment, ? super R> finisher;
+        private int spillThreshold = 0;
+        private Consumer<? super A> spill = null;
+
+        private A container = null;
+        private int accumulated = 0;
+
+        private Dispatcher(
+                BiFunction<ProcessingEnvironment, RoundEnvironment, Stream<? extends T>> task,
+                Collector<? super T, A, R> collector,
+                BiConsumer<ProcessingEnvironment, ? super R> finisher) {
+            assert task != null;
+            assert collector != null;
+            assert finisher != null;
+            this.task = task;
+            this.collector = collector;
+            this.finisher = finisher;
+        }
+
+        @Override
+        public void accept(ProcessingEnvironment procEnv, RoundEnvironment roundEnv) {
+            try (Stream<? extends T> results = task.apply(procEnv, roundEnv)) {
+                if (results != null) {
+                    results.forEachOrdered(this::accumulate);
+                }
+            }
+        }
+
+        private void accumulate(T result) {
+            if (container == null) {
+                container = collector.supplier().get();
+            }
+            collector.accumulator().accept(container, result);
+            accumulated++;
+            if (spill != null && accumulated >= spillThreshold) {
+                A full = container;
+                container = null;
+                accumulated = 0;
+                spill.accept(full);
+            }
+        }
+
+        private void deliver(ProcessingEnvironment procEnv) {
+            A remaining = (container == null) ? collector.supplier().get() : container;
+            container = null;
+            finisher.accept(procEnv, collector.finisher().apply(remaining));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.proc;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * <p>This processor is a helper class for running a single user-defined task on just those
+ * elements which are annotated with some given annotation types.
+ *
+ * <p>Unlike a {@link UniversalProcessor}, an instance of this class only claims the annotation
+ * types with which it was constructed. So javac only runs it in rounds in which some of the round's
+ * elements are annotated with one of those types (and, as javac always does, in the rounds after
+ * any round in which it was run). In a round in which it is run but none of the round's elements
+ * are so annotated, the task is not called.
+ *
+ * <p>In each round in which the task is called, it is passed the current
+ * {@link ProcessingEnvironment} and the set of all of the round's elements which are annotated with
+ * any of the supported types. Elements are ordered first by annotation type (in the order in which
+ * javac reports the types) and then as {@link RoundEnvironment#getElementsAnnotatedWith} returns
+ * them, and each element appears once.
+ *
+ * <p>The time spent running the task can be observed with a {@link RoundListener}, just as for a
+ * {@link UniversalProcessor}. Rounds in which the task is skipped for lack of annotated elements
+ * are still reported, but rounds which the processor's {@link RoundMode} excludes are not.
+ *
+ * @see Processor#getSupportedAnnotationTypes()
+ * @see UniversalProcessor
+ *
+ * @author dwtj
+ */
+final public class AnnotationsProcessor extends UniversalProcessor {
+
+    private final Set<String> supportedAnnotationTypes;
+    private final Dispatcher dispatcher;
+
+    /**
+     * @param supportedAnnotationTypes The names of the annotation types for whose elements the
+     *                                 task is to be run. Each name has the syntax described by
+     *                                 {@link Processor#getSupportedAnnotationTypes()}, e.g.
+     *                                 {@code "com.example.MyAnnotation"} or
+     *                                 {@code "com.example.*"}, except that {@code "*"} itself is
+     *                                 not permitted (use {@link UniversalProcessor} instead).
+     * @param supportedSourceVersion   The latest source version which the task supports.
+     * @param task                     The task to be run on each round's annotated elements.
+     *
+     * @throws IllegalArgumentException If there are no annotation types, or if one is {@code "*"}.
+     */
+    public AnnotationsProcessor(Collection<String> supportedAnnotationTypes,
+                                SourceVersion supportedSourceVersion,
+                                BiConsumer<ProcessingEnvironment, Set<Element>> task) {
+        this(supportedAnnotationTypes, supportedSourceVersion, new Dispatcher(task));
+    }
+
+    private AnnotationsProcessor(Collection<String> supportedAnnotationTypes,
+                                 SourceVersion supportedSourceVersion,
+                                 Dispatcher dispatcher) {
+        super(dispatcher);
+        assert supportedAnnotationTypes != null;
+        assert supportedSourceVersion != null;
+        if (supportedAnnotationTypes.isEmpty()) {
+            throw new IllegalArgumentException("No supported annotation types were given.");
+        }
+        if (supportedAnnotationTypes.contains("*")) {
+            String msg = "\"*\" is not a supported annotation type; use a UniversalProcessor.";
+            throw new IllegalArgumentException(msg);
+        }
+        this.supportedAnnotationTypes = unmodifiableSet(new LinkedHashSet<>(
+                                                                    supportedAnnotationTypes));
+        this.dispatcher = dispatcher;
+        setSupportedSourceVersion(supportedSourceVersion);
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return supportedAnnotationTypes;
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        dispatcher.annotations = annotations;
+        try {
+            return super.process(annotations, roundEnv);
+        } finally {
+            dispatcher.annotations = null;
+        }
+    }
+
+    /** Collects the round's annotated elements, and calls the task if there are any. */
+    private static final class Dispatcher
+            implements BiConsumer<ProcessingEnvironment, RoundEnvironment> {
+
+        private final BiConsumer<ProcessingEnvironment, Set<Element>> task;
+
+        /** The annotation types present in the current round, as given by javac. */
+        private Set<? extends TypeElement> annotations = null;
+
+        private Dispatcher(BiConsumer<ProcessingEnvironment, Set<Element>> task) {
+            assert task != null;
+            this.task = task;
+        }
+
+        @Override
+        public void accept(ProcessingEnvironment procEnv, RoundEnvironment roundEnv) {
+            if (annotations == null || annotations.isEmpty()) {
+                return;
+            }
+            Set<Element> annotated = new LinkedHashSet<>();
+            for (TypeElement annotation : annotations) {
+                annotated.addAll(roundEnv.getElementsAnnotatedWith(annotation));
+            }
+            if (!annotated.isEmpty()) {
+                task.accept(procEnv, unmodifiableSet(annotated));
+            }
+        }
+    }
+}
@@ -16,23 +16,45 @@
 package me.dwtj.java.compiler.utils.proc;
 
 import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.util.TreePath;
 import com.sun.source.util.Trees;
 
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.Processor;
 import javax.annotation.processing.RoundEnvironment;
-import javax.annotation.processing.SupportedAnnotationTypes;
-import javax.annotation.processing.SupportedSourceVersion;
-import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 
 /**
  * <p>This processor is a helper class for a running a processor in every round of a
  * compilation task and within that round, applying a single single user-defined task to the
  * round's root elements.
  *
+ * <p>More precisely, the task is applied to the compilation units which declare the round's root
+ * elements. Since a single compilation unit may declare many top-level types, many root elements
+ * may share a compilation unit, but the task is applied to each compilation unit exactly once per
+ * round. (Compilation units are compared by identity.) By calling {@link #setOncePerCompilation},
+ * the task can instead be applied to each compilation unit at most once over all rounds.
+ *
+ * <p>By default, the task is applied to one compilation unit at a time on the compiler's thread.
+ * By calling {@link #setExecutor}, the task can instead be applied to many compilation units
+ * concurrently. See that method for what such a task may safely do.
+ *
+ * <p>Since the final round has no root elements, the task is never applied in the final round, so
+ * {@link RoundMode#FINAL_ROUND_ONLY} makes such a processor do nothing at all. With
+ * {@link RoundMode#FIRST_ROUND_ONLY}, the task is applied only to the compilation units which were
+ * given to the compiler, and not to any which are generated by processors.
+ *
  * <p>Instances of this class are <em>universal processors</em> (as the term is used in the docs of
  * {@link Processor})
  *
@@ -42,19 +64,151 @@ import java.util.stream.Collectors;
  *
  * @author dwtj
  */
-@SupportedAnnotationTypes("*")
-@SupportedSourceVersion(SourceVersion.RELEASE_8)
 final public class CompilationUnitsProcessor extends UniversalProcessor {
 
+    private final Dispatcher dispatcher;
+
     public CompilationUnitsProcessor(Consumer<CompilationUnitTree> task) {
-        super((p, r) -> getTrees(p, r).forEach(task));
+        this(new Dispatcher(task));
+    }
+
+    private CompilationUnitsProcessor(Dispatcher dispatcher) {
+        super(dispatcher);
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Sets whether the task is to be applied to each compilation unit at most once over all
+     * rounds, rather than at most once per round. Note that if this is set, then every visited
+     * compilation unit will be retained until the processor itself is no longer reachable.
+     *
+     * <p>By default, this is not set.
+     *
+     * @param oncePerCompilation Whether each compilation unit is to be visited at most once.
+     */
+    public void setOncePerCompilation(boolean oncePerCompilation) {
+        dispatcher.oncePerCompilation = oncePerCompilation;
+    }
+
+    /**
+     * <p>Sets the executor on which the task is to be run, one job per compilation unit. This lets
+     * read-only analyses of a round's compilation units run in parallel. In each round, all of the
+     * round's jobs are submitted to the executor, and then the compiler's thread waits for all of
+     * them to finish before this processor returns from {@link #process}. So, no job is still
+     * running when the compiler resumes.
+     *
+     * <p>If any jobs throw exceptions, then once all jobs have finished, the exception thrown by
+     * the job of the earliest compilation unit (in the order of the round's root elements) is
+     * rethrown, and any other jobs' exceptions are added to it as suppressed exceptions. Thus, the
+     * outcome does not depend upon how the jobs happened to be scheduled.
+     *
+     * <p><em>Warning:</em> javac's internals are not thread-safe. A task run on an executor may
+     * only <em>read</em> the {@link CompilationUnitTree} it is given: it may walk the tree's nodes
+     * (e.g. with a {@link com.sun.source.util.TreeScanner}) and read their properties, including
+     * names, literals, and the unit's source file name. It must not modify the tree, and it must
+     * not use any of the compiler's utilities, e.g. {@link Trees}, {@link TreePath}-based lookups,
+     * {@link javax.lang.model.util.Elements}, {@link javax.lang.model.util.Types}, the
+     * {@link javax.annotation.processing.Messager} or the
+     * {@link javax.annotation.processing.Filer},
+     * since these may lazily complete symbols or otherwise mutate shared compiler state. Any such
+     * work should instead be done after the jobs have finished, on the compiler's thread.
+     *
+     * <p>By default, no executor is set. Passing {@code null} restores this default.
+     *
+     * @param executor The executor on which to run the task.
+     */
+    public void setExecutor(Executor executor) {
+        dispatcher.executor = executor;
+    }
+
+    private static Set<CompilationUnitTree> newIdentitySet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
     }
 
-    private static List<CompilationUnitTree> getTrees (ProcessingEnvironment procEnv,
-                                                       RoundEnvironment roundEnv) {
-        Trees treeUtils = Trees.instance(procEnv);
-        return roundEnv.getRootElements().stream()
-                .map(root -> treeUtils.getPath(root).getCompilationUnit())
-                .collect(Collectors.toList());
+    /**
+     * Applies the user's task to the compilation units which haven't yet been visited. Each unit
+     * is passed to the task as soon as it has been found, without first collecting the round's
+     * units. The {@link Trees} instance is only looked up once per processing environment.
+     */
+    private static final class Dispatcher
+            implements BiConsumer<ProcessingEnvironment, RoundEnvironment> {
+
+        private final Consumer<CompilationUnitTree> task;
+        private final Set<CompilationUnitTree> visitedInAnyRound = newIdentitySet();
+        private final Set<CompilationUnitTree> visitedInThisRound = newIdentitySet();
+        private boolean oncePerCompilation = false;
+        private Executor executor = null;
+
+        private ProcessingEnvironment treeUtilsEnv = null;
+        private Trees treeUtils = null;
+
+        private Dispatcher(Consumer<CompilationUnitTree> task) {
+            this.task = task;
+        }
+
+        @Override
+        public void accept(ProcessingEnvironment procEnv, RoundEnvironment roundEnv) {
+            Trees trees = getTreeUtils(procEnv);
+            Set<CompilationUnitTree> visited = oncePerCompilation ? visitedInAnyRound
+                                                                  : visitedInThisRound;
+            List<CompletableFuture<Void>> jobs = (executor == null) ? null : new ArrayList<>();
+            CompilationUnitTree previous = null;
+            try {
+                for (Element root : roundEnv.getRootElements()) {
+                    TreePath path = trees.getPath(root);
+                    if (path == null) {
+                        continue;  // The root element has no source, so it has no tree.
+                    }
+                    CompilationUnitTree unit = path.getCompilationUnit();
+                    // Consecutive root elements often share a unit, so skip the set in that case.
+                    if (unit != previous && visited.add(unit)) {
+                        if (jobs == null) {
+                            task.accept(unit);
+                        } else {
+                            jobs.add(CompletableFuture.runAsync(() -> task.accept(unit), executor));
+                        }
+                    }
+                    previous = unit;
+                }
+            } finally {
+                visitedInThisRound.clear();
+                if (jobs != null) {
+                    awaitAll(jobs);
+                }
+            }
+        }
+
+        /** Waits for all of the given jobs, and then rethrows the first job's exception, if any. */
+        private static void awaitAll(List<CompletableFuture<Void>> jobs) {
+            Throwable first = null;
+            for (CompletableFuture<Void> job : jobs) {
+                try {
+                    job.join();
+                } catch (CompletionException | CancellationException ex) {
+                    Throwable cause = (ex instanceof CompletionException && ex.getCause() != null)
+                                          ? ex.getCause() : ex;
+                    if (first == null) {
+                        first = cause;
+                    } else {
+                        first.addSuppressed(cause);
+                    }
+                }
+            }
+            if (first instanceof RuntimeException) {
+                throw (RuntimeException) first;
+            } else if (first instanceof Error) {
+                throw (Error) first;
+            } else if (first != null) {
+                throw new CompletionException(first);
+            }
+        }
+
+        private Trees getTreeUtils(ProcessingEnvironment procEnv) {
+            if (procEnv != treeUtilsEnv) {
+                treeUtils = Trees.instance(procEnv);
+                treeUtilsEnv = procEnv;
+            }
+            return treeUtils;
+        }
     }
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.proc;
+
+/**
+ * A listener which is notified each time a {@link UniversalProcessor} finishes running its task in
+ * some round of annotation processing. Rounds which the processor's {@link RoundMode} excludes are
+ * not reported, since the task is not run in them.
+ *
+ * @see UniversalProcessor#addRoundListener
+ * @see RoundStatistics
+ *
+ * @author dwtj
+ */
+@FunctionalInterface
+public interface RoundListener {
+
+    /**
+     * Called on the compiler's thread right after a processor's task has been run in some round
+     * (or has thrown an exception in that round). This should be cheap, since it is counted as part
+     * of the processing time of the round.
+     *
+     * @param timing A record of the round which has just finished.
+     */
+    void roundFinished(RoundTiming timing);
+}
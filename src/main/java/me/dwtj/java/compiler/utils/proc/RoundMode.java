@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.proc;
+
+import javax.annotation.processing.RoundEnvironment;
+
+/**
+ * The rounds of annotation processing in which a {@link UniversalProcessor} runs its task. In
+ * rounds which a mode excludes, the processor returns immediately, and its round listeners are not
+ * notified.
+ *
+ * <p>Note that rounds are counted from the first round in which javac calls the processor. For a
+ * universal processor this is always the compilation's first round, but a processor which only
+ * claims certain annotation types (e.g. an {@link AnnotationsProcessor}) may first be called in
+ * some later round.
+ *
+ * @see UniversalProcessor#setRoundMode
+ *
+ * @author dwtj
+ */
+public enum RoundMode {
+
+    /** The task is run in every round, including the final round. This is the default. */
+    EVERY_ROUND,
+
+    /**
+     * The task is run only in the first round, i.e. only on the compilation units which were
+     * given to the compiler (and not on any which are generated during processing).
+     */
+    FIRST_ROUND_ONLY,
+
+    /**
+     * The task is run only in the final round, i.e. the round in which
+     * {@link RoundEnvironment#processingOver()} is {@code true}. Note that the final round has no
+     * root elements, so this is only useful for tasks which act upon state which they have
+     * gathered elsewhere (or for tasks which look up elements by name).
+     */
+    FINAL_ROUND_ONLY,
+
+    /**
+     * The task is run only in rounds which have some root elements, i.e. in every round which
+     * has new compilation units to process. This excludes the final round, as well as any round
+     * in which processors have only generated resources or class files.
+     */
+    ROUNDS_WITH_NEW_ROOT_ELEMENTS;
+
+    /** @return Whether a task in this mode is to be run in the given round. */
+    boolean includes(int round, RoundEnvironment roundEnv) {
+        switch (this) {
+            case EVERY_ROUND:
+                return true;
+            case FIRST_ROUND_ONLY:
+                return round == 1;
+            case FINAL_ROUND_ONLY:
+                return roundEnv.processingOver();
+            case ROUNDS_WITH_NEW_ROOT_ELEMENTS:
+                return !roundEnv.getRootElements().isEmpty();
+            default:
+                throw new AssertionError(this);
+        }
+    }
+}
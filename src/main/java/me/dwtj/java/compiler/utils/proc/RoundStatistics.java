@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.proc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * <p>A {@link RoundListener} which aggregates the {@link RoundTiming}s it is given into a simple
+ * summary: the number of rounds, the total and the maximum time spent in any one round, and the
+ * total number of root elements. The same summary is also kept for each processor (by name), and
+ * the most recent timings are kept as they are.
+ *
+ * <p>A single instance may be added to many processors (even processors of concurrently running
+ * compilation tasks) to aggregate all of their rounds. Its memory use is bounded, however many
+ * rounds it is given: only a fixed number of recent timings is kept, and timings only name their
+ * processors. This class is thread-safe.
+ *
+ * @author dwtj
+ */
+final public class RoundStatistics implements RoundListener {
+
+    /** The number of recent timings which are kept by default. */
+    public static final int DEFAULT_RECENT_TIMINGS = 1024;
+
+    private final int maxRecentTimings;
+    private final Deque<RoundTiming> recentTimings = new ArrayDeque<>();
+    private final Summary total = new Summary();
+    private final Map<String, Summary> byProcessor = new LinkedHashMap<>();
+
+    /**
+     * Instantiates statistics which keep the {@value #DEFAULT_RECENT_TIMINGS} most recent timings.
+     */
+    public RoundStatistics() {
+        this(DEFAULT_RECENT_TIMINGS);
+    }
+
+    /**
+     * @param maxRecentTimings The number of recent timings to be kept.
+     */
+    public RoundStatistics(int maxRecentTimings) {
+        if (maxRecentTimings < 0) {
+            throw new IllegalArgumentException("Negative `maxRecentTimings`: " + maxRecentTimings);
+        }
+        this.maxRecentTimings = maxRecentTimings;
+    }
+
+    @Override
+    public synchronized void roundFinished(RoundTiming timing) {
+        if (maxRecentTimings > 0) {
+            if (recentTimings.size() == maxRecentTimings) {
+                recentTimings.removeFirst();
+            }
+            recentTimings.addLast(timing);
+        }
+        total.add(timing);
+        byProcessor.computeIfAbsent(timing.getProcessorName(), name -> new Summary()).add(timing);
+    }
+
+    /**
+     * @return A copy of the most recent timings recorded so far, in the order they were recorded.
+     */
+    public synchronized List<RoundTiming> getRecentTimings() {
+        return new ArrayList<>(recentTimings);
+    }
+
+    /**
+     * @return A copy of the summary of the rounds of each processor recorded so far, keyed by
+     *         {@link RoundTiming#getProcessorName() processor name}, in the order in which the
+     *         processors were first recorded.
+     */
+    public synchronized Map<String, Summary> getSummariesByProcessor() {
+        Map<String, Summary> copy = new LinkedHashMap<>();
+        byProcessor.forEach((name, summary) -> copy.put(name, summary.copy()));
+        return copy;
+    }
+
+    /**
+     * @return The number of rounds recorded so far.
+     */
+    public synchronized int getRounds() {
+        return total.rounds;
+    }
+
+    /**
+     * @return The total wall time, in nanoseconds, of all rounds recorded so far.
+     */
+    public synchronized long getTotalNanos() {
+        return total.totalNanos;
+    }
+
+    /**
+     * @return The wall time, in nanoseconds, of the slowest round recorded so far.
+     */
+    public synchronized long getMaxNanos() {
+        return total.maxNanos;
+    }
+
+    /**
+     * @return The total number of root elements in all rounds recorded so far.
+     */
+    public synchronized long getTotalRootElements() {
+        return total.totalRootElements;
+    }
+
+    /**
+     * Discards everything recorded so far.
+     */
+    public synchronized void reset() {
+        recentTimings.clear();
+        total.clear();
+        byProcessor.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RoundStatistics{" + total.fields() + "}";
+    }
+
+
+    /**
+     * A summary of some rounds: their number, their total and maximum wall time, and their total
+     * number of root elements. A summary obtained from {@link #getSummariesByProcessor()} is a
+     * snapshot, so it does not change as more rounds are recorded.
+     */
+    final public static class Summary {
+
+        private int rounds = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+        private long totalRootElements = 0;
+
+        private Summary() { }
+
+        private void add(RoundTiming timing) {
+            rounds++;
+            totalNanos += timing.getElapsedNanos();
+            maxNanos = Math.max(maxNanos, timing.getElapsedNanos());
+            totalRootElements += timing.getRootElements();
+        }
+
+        private void clear() {
+            rounds = 0;
+            totalNanos = 0;
+            maxNanos = 0;
+            totalRootElements = 0;
+        }
+
+        private Summary copy() {
+            Summary copy = new Summary();
+            copy.rounds = rounds;
+            copy.totalNanos = totalNanos;
+            copy.maxNanos = maxNanos;
+            copy.totalRootElements = totalRootElements;
+            return copy;
+        }
+
+        /** @return The number of rounds. */
+        public int getRounds() {
+            return rounds;
+        }
+
+        /** @return The total wall time, in nanoseconds, of the rounds. */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /** @return The wall time, in nanoseconds, of the slowest round. */
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        /** @return The total number of root elements in the rounds. */
+        public long getTotalRootElements() {
+            return totalRootElements;
+        }
+
+        private String fields() {
+            return "rounds=" + rounds
+                    + ", totalMillis=" + NANOSECONDS.toMillis(totalNanos)
+                    + ", maxMillis=" + NANOSECONDS.toMillis(maxNanos)
+                    + ", totalRootElements=" + totalRootElements;
+        }
+
+        @Override
+        public String toString() {
+            return "Summary{" + fields() + "}";
+        }
+    }
+}
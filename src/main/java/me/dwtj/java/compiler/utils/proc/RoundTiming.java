@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils.proc;
+
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+
+/**
+ * An immutable record of how long a single {@link Processor} spent running its task in a single
+ * round of annotation processing. The processor is only identified by its name, so that a timing
+ * does not keep the processor (and so its whole compilation) in memory.
+ *
+ * @see RoundListener
+ *
+ * @author dwtj
+ */
+final public class RoundTiming {
+
+    private final String processorName;
+    private final int round;
+    private final int rootElements;
+    private final boolean isFinal;
+    private final long elapsedNanos;
+
+    RoundTiming(String processorName, int round, int rootElements, boolean isFinal,
+                long elapsedNanos) {
+        assert processorName != null;
+        this.processorName = processorName;
+        this.round = round;
+        this.rootElements = rootElements;
+        this.isFinal = isFinal;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return The name of the processor which ran in the round.
+     *
+     * @see UniversalProcessor#setName
+     */
+    public String getProcessorName() {
+        return processorName;
+    }
+
+    /**
+     * @return The number of the round, where the first round in which the processor ran is 1.
+     */
+    public int getRound() {
+        return round;
+    }
+
+    /**
+     * @return The number of {@link RoundEnvironment#getRootElements() root elements} in the round.
+     */
+    public int getRootElements() {
+        return rootElements;
+    }
+
+    /**
+     * @return Whether this was the final round, i.e. whether
+     *         {@link RoundEnvironment#processingOver()} was {@code true}.
+     */
+    public boolean isFinal() {
+        return isFinal;
+    }
+
+    /**
+     * @return The wall time, in nanoseconds, spent running the processor's task in the round.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "RoundTiming{processor=" + processorName
+                + ", round=" + round
+                + ", rootElements=" + rootElements
+                + ", isFinal=" + isFinal
+                + ", elapsedNanos=" + elapsedNanos + "}";
+    }
+}
@@ -19,10 +19,11 @@ import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.Processor;
 import javax.annotation.processing.RoundEnvironment;
-import javax.annotation.processing.SupportedAnnotationTypes;
-import javax.annotation.processing.SupportedSourceVersion;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.TypeElement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.function.BiConsumer;
 
@@ -35,22 +36,119 @@ import java.util.function.BiConsumer;
  * {@link Processor}): An instance will claim all annotation types ({@code "*"}), and it will be run
  * even if all root elements of a given round have no annotations on them.
  *
+ * <p>By default, the task is run in every round. It can instead be run only in certain rounds
+ * (e.g. only in the final round) by calling {@link #setRoundMode}.
+ *
+ * <p>By default, a processor supports the latest source version which the running compiler
+ * supports, so it runs without warnings on any JDK. See {@link #setSupportedSourceVersion}.
+ *
+ * <p>The time spent running the task in each round can be observed by adding a
+ * {@link RoundListener} (e.g. a {@link RoundStatistics}) via {@link #addRoundListener}.
+ *
  * @see Processor
  * @author dwtj on 2/25/16.
  */
-@SupportedAnnotationTypes("*")
-@SupportedSourceVersion(SourceVersion.RELEASE_8)
 public class UniversalProcessor extends AbstractProcessor {
 
     private final BiConsumer<ProcessingEnvironment, RoundEnvironment> task;
+    private final List<RoundListener> roundListeners = new ArrayList<>();
+    private SourceVersion supportedSourceVersion = SourceVersion.latestSupported();
+    private RoundMode roundMode = RoundMode.EVERY_ROUND;
+    private String name = getClass().getName();
+    private int round = 0;
 
     public UniversalProcessor(BiConsumer<ProcessingEnvironment, RoundEnvironment> task) {
         this.task = task;
     }
 
+    /**
+     * Sets the rounds in which the task is to be run. In any other round, the processor does
+     * nothing.
+     *
+     * <p>By default, this is {@link RoundMode#EVERY_ROUND}.
+     *
+     * @param roundMode The rounds in which the task is to be run.
+     */
+    public void setRoundMode(RoundMode roundMode) {
+        assert roundMode != null;
+        this.roundMode = roundMode;
+    }
+
+    /**
+     * Sets the name by which this processor's {@link RoundTiming round timings} identify it, e.g.
+     * to tell apart the timings of several universal processors in one {@link RoundStatistics}.
+     *
+     * <p>By default, this is the name of the processor's class.
+     *
+     * @param name The processor's name.
+     */
+    public void setName(String name) {
+        assert name != null;
+        this.name = name;
+    }
+
+    /**
+     * Sets the latest source version which this processor's task supports. When compiling sources
+     * of a later version, javac warns that the processor may not support them.
+     *
+     * <p>By default, this is {@link SourceVersion#latestSupported()}, i.e. the latest version which
+     * the running compiler supports.
+     *
+     * @param version The latest supported source version.
+     */
+    public void setSupportedSourceVersion(SourceVersion version) {
+        assert version != null;
+        supportedSourceVersion = version;
+    }
+
+    /**
+     * @return {@code "*"}, i.e. all annotation types, as befits a universal processor.
+     */
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton("*");
+    }
+
+    /**
+     * @return The source version set via {@link #setSupportedSourceVersion}, or else
+     *         {@link SourceVersion#latestSupported()}.
+     */
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return supportedSourceVersion;
+    }
+
+    /**
+     * The given listener will be notified each time this processor finishes running its task in
+     * some round. By default, a processor has no round listeners, and no timing is performed.
+     *
+     * @param listener The listener to be added.
+     */
+    public void addRoundListener(RoundListener listener) {
+        assert listener != null;
+        roundListeners.add(listener);
+    }
+
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
-        task.accept(processingEnv, roundEnv);
+        round++;
+        if (!roundMode.includes(round, roundEnv)) {
+            return false;
+        }
+        if (roundListeners.isEmpty()) {
+            task.accept(processingEnv, roundEnv);
+            return false;
+        }
+
+        long start = System.nanoTime();
+        try {
+            task.accept(processingEnv, roundEnv);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            RoundTiming timing = new RoundTiming(name, round, roundEnv.getRootElements().size(),
+                                                 roundEnv.processingOver(), elapsed);
+            roundListeners.forEach(l -> l.roundFinished(timing));
+        }
         return false;
     }
 }
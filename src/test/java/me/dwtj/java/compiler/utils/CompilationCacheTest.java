@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import me.dwtj.java.compiler.utils.proc.RoundMode;
+import me.dwtj.java.compiler.utils.proc.UniversalProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that a {@link CompilationCache} restores an entry only for an identical compilation.
+ *
+ * @author dwtj
+ */
+public class CompilationCacheTest {
+
+    private static final AtomicInteger countingProcessorRuns = new AtomicInteger();
+
+    private Path root;
+    private CompilationCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        root = TestFiles.newTempDir();
+        cache = new CompilationCache(root.resolve("cache").toFile(), Long.MAX_VALUE);
+        TestFiles.write(root, "src/p/A.java", "package p; public class A { }");
+        countingProcessorRuns.set(0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.deleteRecursively(root);
+    }
+
+    @Test
+    public void processorsWithoutCacheKeysAreRefused() throws IOException {
+        CompilationTaskBuilder builder = newBuilder("out")
+                .addProc((env, round) -> { });
+        try {
+            builder.compile();
+            fail("A lambda processor without a cache key was cached.");
+        } catch (IllegalStateException ex) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void processorsWithDifferentCacheKeysDoNotShareEntries() throws IOException {
+        CompilationResult first = newBuilder("out1")
+                .addProcFactory(generating("G1"), "generates-G1")
+                .compile();
+        assertTrue(first.toString(), first.isSuccess());
+        assertTrue(Files.exists(root.resolve("out1/gen/G1.class")));
+
+        CompilationResult second = newBuilder("out2")
+                .addProcFactory(generating("G2"), "generates-G2")
+                .compile();
+        assertTrue(second.toString(), second.isSuccess());
+        assertTrue(Files.exists(root.resolve("out2/gen/G2.class")));
+        assertFalse(Files.exists(root.resolve("out2/gen/G1.class")));
+    }
+
+    @Test
+    public void identicalCompilationsShareEntries() throws IOException {
+        AtomicInteger runs = new AtomicInteger();
+        for (String out : new String[] { "out1", "out2" }) {
+            CompilationResult result = newBuilder(out)
+                    .addProcFactory(generating("G1", runs), "generates-G1")
+                    .compile();
+            assertTrue(result.toString(), result.isSuccess());
+            assertTrue(Files.exists(root.resolve(out + "/gen/G1.class")));
+            assertTrue(Files.exists(root.resolve(out + "/p/A.class")));
+        }
+        assertEquals(1, runs.get());
+        assertEquals(1, countEntries());
+    }
+
+    @Test
+    public void processorsAreIdentifiedByClassName() throws IOException {
+        for (String out : new String[] { "out1", "out2" }) {
+            CompilationResult result = newBuilder(out)
+                    .addProcFactory(CountingProcessor::new)
+                    .compile();
+            assertTrue(result.toString(), result.isSuccess());
+        }
+        assertEquals(1, countingProcessorRuns.get());
+    }
+
+    @Test
+    public void unitsWithTheSameNameInDifferentDirectoriesDoNotShareEntries() throws IOException {
+        String code = "public class Foo { }";
+        Path a = TestFiles.write(root, "a/Foo.java", code);
+        Path b = TestFiles.write(root, "b/Foo.java", code);
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        try (StandardJavaFileManager fm = compiler.getStandardFileManager(null, null, null)) {
+            for (Path unit : new Path[] { a, b }) {
+                CompilationTaskBuilder builder = CompilationTaskBuilder.newBuilder()
+                        .setCompilationCache(cache)
+                        .addProcFactory(CountingProcessor::new);
+                builder.getFileManagerConfig()
+                       .setClassOutputDir(newDir("out-" + unit.getParent().getFileName()));
+                for (JavaFileObject fo : fm.getJavaFileObjects(unit.toFile())) {
+                    builder.addCompilationUnit(fo);
+                }
+                CompilationResult result = builder.compile();
+                assertTrue(result.toString(), result.isSuccess());
+            }
+        }
+        assertEquals(2, countingProcessorRuns.get());
+    }
+
+    private CompilationTaskBuilder newBuilder(String out) throws IOException {
+        CompilationTaskBuilder builder = CompilationTaskBuilder.newBuilder()
+                .setCompilationCache(cache)
+                .addClass("p.A");
+        builder.getFileManagerConfig()
+               .addToSourcePath(root.resolve("src").toFile())
+               .setClassOutputDir(newDir(out));
+        return builder;
+    }
+
+    private File newDir(String name) throws IOException {
+        return Files.createDirectories(root.resolve(name)).toFile();
+    }
+
+    private long countEntries() throws IOException {
+        try (Stream<Path> entries = Files.list(root.resolve("cache/entries"))) {
+            return entries.count();
+        }
+    }
+
+    private static Supplier<Processor> generating(String name) {
+        return generating(name, new AtomicInteger());
+    }
+
+    /**
+     * @return A factory of processors which generate the class {@code gen.<name>} in their first
+     *         round, and count those rounds with the given counter.
+     */
+    private static Supplier<Processor> generating(String name, AtomicInteger runs) {
+        return () -> {
+            UniversalProcessor processor = new UniversalProcessor((env, round) -> {
+                runs.incrementAndGet();
+                try (Writer w = env.getFiler().createSourceFile("gen." + name).openWriter()) {
+                    w.write("package gen; public class " + name + " { }");
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            processor.setRoundMode(RoundMode.FIRST_ROUND_ONLY);
+            return processor;
+        };
+    }
+
+    /** A processor whose behavior is determined by its class, which counts its first rounds. */
+    @SupportedAnnotationTypes("*")
+    public static final class CountingProcessor extends AbstractProcessor {
+
+        private boolean counted = false;
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latestSupported();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+            if (!counted) {
+                counted = true;
+                countingProcessorRuns.incrementAndGet();
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests how {@link CompilationTaskTemplate#compileAsync} completes, times out and is cancelled.
+ *
+ * @author dwtj
+ */
+public class CompilationTaskTemplateTest {
+
+    private static final String SOURCE = "package p; public class A { }";
+
+    private Path out;
+    private ExecutorService executor;
+    private final AtomicInteger rounds = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        out = TestFiles.newTempDir();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        TestFiles.deleteRecursively(out);
+    }
+
+    @Test
+    public void completesWithTheResult() throws Exception {
+        CompilationResult result = newBuilder(SOURCE).compileAsync(executor).get(30, SECONDS);
+        assertTrue(result.isSuccess());
+        assertTrue(Files.exists(out.resolve("p/A.class")));
+        assertTrue(result.getProducedFiles().contains(out.resolve("p/A.class").toUri()));
+    }
+
+    @Test
+    public void capsTheDiagnosticsOfTheResult() throws Exception {
+        CompilationResult result = newBuilder("package p; class A { X x; Y y; Z z; }")
+                .setResultDiagnosticLimit(1)
+                .compileAsync(executor)
+                .get(30, SECONDS);
+        assertFalse(result.isSuccess());
+        assertEquals(1, result.getDiagnostics().size());
+        assertEquals(Diagnostic.Kind.ERROR, result.getDiagnostics().get(0).getKind());
+        assertEquals(2, result.getDroppedDiagnosticCount());
+    }
+
+    @Test
+    public void abortsARunningCompilationWhichTimesOut() throws Exception {
+        CountDownLatch timedOut = new CountDownLatch(1);
+        CompletableFuture<CompilationResult> future = newBuilder(SOURCE)
+                .addProc((procEnv, roundEnv) -> {
+                    rounds.incrementAndGet();
+                    await(timedOut);
+                })
+                .compileAsync(executor, 500, MILLISECONDS);
+        assertFailsWith(TimeoutException.class, future);
+        timedOut.countDown();
+
+        // The aborted compilation frees its worker, without finishing its rounds or its outputs.
+        // (Depending on how fast javac starts, it is aborted in its first round or before it.)
+        executor.submit(() -> { }).get(30, SECONDS);
+        assertTrue(rounds.get() <= 1);
+        assertFalse(Files.exists(out.resolve("p/A.class")));
+    }
+
+    @Test
+    public void neverStartsACompilationWhichTimesOutFirst() throws Exception {
+        List<Runnable> queued = new ArrayList<>();
+        CompletableFuture<CompilationResult> future = newBuilder(SOURCE)
+                .addProc((procEnv, roundEnv) -> rounds.incrementAndGet())
+                .compileAsync(queued::add, 0, MILLISECONDS);
+        assertFailsWith(TimeoutException.class, future);
+        queued.forEach(Runnable::run);
+        assertEquals(0, rounds.get());
+        assertFalse(Files.exists(out.resolve("p/A.class")));
+    }
+
+    @Test
+    public void neverStartsACancelledCompilation() throws Exception {
+        List<Runnable> queued = new ArrayList<>();
+        CompletableFuture<CompilationResult> future = newBuilder(SOURCE)
+                .addProc((procEnv, roundEnv) -> rounds.incrementAndGet())
+                .compileAsync(queued::add);
+        assertTrue(future.cancel(false));
+        queued.forEach(Runnable::run);
+        assertTrue(future.isCancelled());
+        assertEquals(0, rounds.get());
+        assertFalse(Files.exists(out.resolve("p/A.class")));
+    }
+
+    @Test
+    public void abortsARunningCompilationWhichIsCancelled() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        CompletableFuture<CompilationResult> future = newBuilder(SOURCE)
+                .addProc((procEnv, roundEnv) -> {
+                    rounds.incrementAndGet();
+                    running.countDown();
+                    await(cancelled);
+                })
+                .compileAsync(executor);
+        await(running);
+        assertTrue(future.cancel(false));
+        cancelled.countDown();
+        assertFailsWith(CancellationException.class, future);
+
+        executor.submit(() -> { }).get(30, SECONDS);
+        assertEquals(1, rounds.get());
+        assertFalse(Files.exists(out.resolve("p/A.class")));
+    }
+
+    @Test
+    public void doesNotTimeOutARunningCompilationWhichCannotBeAborted() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        CompletableFuture<CompilationResult> future = newBuilder(SOURCE)
+                .setCompiler(opaque(ToolProvider.getSystemJavaCompiler()))
+                .addProc((procEnv, roundEnv) -> {
+                    running.countDown();
+                    await(finish);
+                })
+                .compileAsync(executor, 100, MILLISECONDS);
+        await(running);
+        Thread.sleep(500);  // Well past the timeout.
+        assertFalse(future.isDone());
+        finish.countDown();
+        assertTrue(future.get(30, SECONDS).isSuccess());
+        assertTrue(Files.exists(out.resolve("p/A.class")));
+    }
+
+    private CompilationTaskBuilder newBuilder(String source) {
+        CompilationTaskBuilder builder = CompilationTaskBuilder.newBuilder()
+                                                               .addSource("p.A", source);
+        builder.getFileManagerConfig().setClassOutputDir(out.toFile());
+        return builder;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(30, SECONDS)) {
+                throw new IllegalStateException("Timed out while waiting for the test.");
+            }
+        } catch (InterruptedException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static void assertFailsWith(Class<? extends Throwable> expected,
+                                        CompletableFuture<CompilationResult> future)
+                                                                throws Exception {
+        try {
+            future.get(30, SECONDS);
+            fail("Expected the compilation to fail with " + expected.getSimpleName() + ".");
+        } catch (CancellationException ex) {
+            assertEquals(expected, CancellationException.class);
+        } catch (ExecutionException ex) {
+            assertEquals(expected, ex.getCause().getClass());
+        }
+    }
+
+    /**
+     * @return A compiler whose tasks are created by the given compiler, but which hides that they
+     *         are its own tasks (e.g. that they are {@code JavacTask}s), as a third-party compiler
+     *         would.
+     */
+    private static JavaCompiler opaque(JavaCompiler compiler) {
+        return (JavaCompiler) Proxy.newProxyInstance(
+                JavaCompiler.class.getClassLoader(),
+                new Class<?>[] { JavaCompiler.class },
+                (proxy, method, args) -> {
+                    Object result;
+                    try {
+                        result = method.invoke(compiler, args);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+                    if (result instanceof CompilationTask) {
+                        return new OpaqueTask((CompilationTask) result);
+                    }
+                    return result;
+                });
+    }
+
+
+    private static final class OpaqueTask implements CompilationTask {
+
+        private final CompilationTask task;
+
+        OpaqueTask(CompilationTask task) {
+            this.task = task;
+        }
+
+        @Override
+        public void setProcessors(Iterable<? extends Processor> processors) {
+            task.setProcessors(processors);
+        }
+
+        @Override
+        public void setLocale(Locale locale) {
+            task.setLocale(locale);
+        }
+
+        public void addModules(Iterable<String> moduleNames) { }
+
+        @Override
+        public Boolean call() {
+            return task.call();
+        }
+    }
+}
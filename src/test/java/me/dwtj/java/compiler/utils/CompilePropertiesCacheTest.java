@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import org.apache.commons.configuration2.ImmutableConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests when {@link CompilePropertiesCache} reuses a cached config, and when it reloads the file.
+ *
+ * @author dwtj
+ */
+public class CompilePropertiesCacheTest {
+
+    private Path root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = TestFiles.newTempDir();
+        CompilePropertiesCache.clear();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        CompilePropertiesCache.clear();
+        TestFiles.deleteRecursively(root);
+    }
+
+    @Test
+    public void reusesTheConfigOfAnUnchangedFile() throws IOException {
+        File file = write("compile.properties", "release=8", 1);
+        ImmutableConfiguration first = CompilePropertiesCache.get(file);
+        assertEquals("8", first.getString("release"));
+        assertSame(first, CompilePropertiesCache.get(file));
+        // Another name for the same file shares its entry.
+        Files.createDirectories(root.resolve("sub"));
+        File other = root.resolve("sub").resolve("..").resolve("compile.properties").toFile();
+        assertSame(first, CompilePropertiesCache.get(other));
+    }
+
+    @Test
+    public void reloadsAChangedFile() throws IOException {
+        File file = write("compile.properties", "release=8", 1);
+        ImmutableConfiguration first = CompilePropertiesCache.get(file);
+        write("compile.properties", "release=9", 2);
+        ImmutableConfiguration second = CompilePropertiesCache.get(file);
+        assertNotSame(first, second);
+        assertEquals("9", second.getString("release"));
+    }
+
+    @Test
+    public void reusesTheConfigOfAFileWhichWasOnlyTouched() throws IOException {
+        File file = write("compile.properties", "release=8", 1);
+        ImmutableConfiguration first = CompilePropertiesCache.get(file);
+        write("compile.properties", "release=8", 2);
+        assertSame(first, CompilePropertiesCache.get(file));
+    }
+
+    @Test
+    public void missingFilesAreReportedAndNotCached() throws IOException {
+        File file = root.resolve("missing.properties").toFile();
+        try {
+            CompilePropertiesCache.get(file);
+            fail("Expected a missing file to be reported.");
+        } catch (UncheckedIOException ex) {
+            // Expected.
+        }
+        write("missing.properties", "release=8", 1);
+        assertEquals("8", CompilePropertiesCache.get(file).getString("release"));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedFilesBeyondTheCap() throws IOException {
+        File first = write("0.properties", "n=0", 1);
+        File second = write("1.properties", "n=1", 1);
+        ImmutableConfiguration firstConfig = CompilePropertiesCache.get(first);
+        ImmutableConfiguration secondConfig = CompilePropertiesCache.get(second);
+        assertSame(firstConfig, CompilePropertiesCache.get(first));  // Now `second` is the eldest.
+        for (int i = 2; i < CompilePropertiesCache.MAX_ENTRIES + 1; i++) {
+            CompilePropertiesCache.get(write(i + ".properties", "n=" + i, 1));
+        }
+        assertSame(firstConfig, CompilePropertiesCache.get(first));
+        assertNotSame(secondConfig, CompilePropertiesCache.get(second));
+    }
+
+    /**
+     * Writes the given file, and sets its modification time to the given number of seconds after
+     * the epoch, so that tests need not wait for the file system's clock to tick.
+     */
+    private File write(String name, String content, long modifiedSeconds) throws IOException {
+        Path file = TestFiles.write(root, name, content);
+        Files.setLastModifiedTime(file, FileTime.from(modifiedSeconds, TimeUnit.SECONDS));
+        return file.toFile();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import com.sun.source.util.TaskEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.tools.JavaCompiler.CompilationTask;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests which compilation units an incremental task recompiles.
+ *
+ * @author dwtj
+ */
+public class IncrementalCompilationTest {
+
+    private Path root;
+    private Path out;
+
+    @Before
+    public void setUp() throws IOException {
+        root = TestFiles.newTempDir();
+        out = Files.createDirectories(root.resolve("out"));
+        TestFiles.write(root, "src/p/A.java", "package p; public class A { }");
+        TestFiles.write(root, "src/p/B.java", "package p; public class B { A a; }");
+        TestFiles.write(root, "src/p/C.java", "package p; public class C { }");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.deleteRecursively(root);
+    }
+
+    @Test
+    public void compilesEverythingAtFirstAndThenNothing() throws IOException {
+        assertEquals(set("A", "B", "C"), compile("A", "B", "C"));
+        assertEquals(set(), compile("A", "B", "C"));
+    }
+
+    @Test
+    public void recompilesChangedUnitsAndTheirDependents() throws IOException {
+        compile("A", "B", "C");
+        edit("src/p/A.java", "package p; public class A { int x; }");
+        assertEquals(set("A", "B"), compile("A", "B", "C"));
+        assertEquals(set(), compile("A", "B", "C"));
+    }
+
+    @Test
+    public void doesNotRecompileUnitsWhichWereOnlyTouched() throws IOException {
+        compile("A", "B", "C");
+        Path c = root.resolve("src/p/C.java");
+        Files.setLastModifiedTime(c, FileTime.fromMillis(Files.getLastModifiedTime(c).toMillis()
+                                                         + 10_000));
+        assertEquals(set(), compile("A", "B", "C"));
+    }
+
+    @Test
+    public void recompilesUnitsWhoseOutputsAreMissing() throws IOException {
+        compile("A", "B", "C");
+        Files.delete(out.resolve("p/C.class"));
+        assertEquals(set("C"), compile("A", "B", "C"));
+        assertTrue(Files.exists(out.resolve("p/C.class")));
+    }
+
+    @Test
+    public void deletesTheOutputsOfRemovedUnits() throws IOException {
+        compile("A", "B", "C");
+        Files.delete(root.resolve("src/p/C.java"));
+        assertEquals(set(), compile("A", "B"));
+        assertFalse(Files.exists(out.resolve("p/C.class")));
+    }
+
+    @Test
+    public void recompilesAfterAFailedCompilation() throws IOException {
+        compile("A", "B", "C");
+        edit("src/p/A.java", "package p; public class A { does not compile }");
+        compile("A", "B", "C");
+        edit("src/p/A.java", "package p; public class A { int y; }");
+        assertEquals(set("A", "B"), compile("A", "B", "C"));
+        assertTrue(Files.exists(out.resolve("p/B.class")));
+    }
+
+    @Test
+    public void tasksWhichAreNeverCalledChangeNothing() throws IOException {
+        compile("A", "B", "C");
+        Files.delete(root.resolve("src/p/C.java"));
+        CompilationTask task = newBuilder(Collections.emptySet(), "A", "B").build();
+        CompilationTaskTemplate.release(task);
+        assertTrue(Files.exists(out.resolve("p/C.class")));
+    }
+
+    /**
+     * Compiles the given classes of package {@code p} incrementally.
+     *
+     * @return The simple names of the classes whose sources were actually parsed.
+     */
+    private Set<String> compile(String... classes) throws IOException {
+        Set<String> parsed = Collections.synchronizedSet(new TreeSet<>());
+        newBuilder(parsed, classes).compile();
+        return parsed;
+    }
+
+    private CompilationTaskBuilder newBuilder(Set<String> parsed, String... classes) {
+        CompilationTaskBuilder builder = CompilationTaskBuilder.newBuilder()
+                .setIncremental(true)
+                .addTaskListener(TaskEvent.Kind.PARSE, e -> parsed.add(simpleName(e)));
+        builder.getFileManagerConfig()
+               .addToSourcePath(root.resolve("src").toFile())
+               .setClassOutputDir(out.toFile());
+        for (String cls : classes) {
+            builder.addClass("p." + cls);
+        }
+        return builder;
+    }
+
+    private static String simpleName(TaskEvent e) {
+        String name = e.getSourceFile().getName();
+        name = name.substring(name.lastIndexOf('/') + 1);
+        return name.substring(0, name.length() - ".java".length());
+    }
+
+    /** Rewrites a file with content of a different size, so that its stamp surely changes. */
+    private void edit(String file, String content) throws IOException {
+        TestFiles.write(root, file, content);
+    }
+
+    private static Set<String> set(String... names) {
+        return new TreeSet<>(Arrays.asList(names));
+    }
+}
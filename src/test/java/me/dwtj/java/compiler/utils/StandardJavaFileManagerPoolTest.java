@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import me.dwtj.java.compiler.utils.CompilationTaskBuilder.StandardJavaFileManagerConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static javax.tools.StandardLocation.CLASS_OUTPUT;
+import static me.dwtj.java.compiler.utils.CompilationTaskBuilder.StandardJavaFileManagerConfig.makeConfig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests which file managers a {@link StandardJavaFileManagerPool} reuses, and which it evicts.
+ *
+ * @author dwtj
+ */
+public class StandardJavaFileManagerPoolTest {
+
+    private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+    private Path root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = TestFiles.newTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.deleteRecursively(root);
+    }
+
+    @Test
+    public void reusesFileManagersWhoseInputLocationsAreEqual() throws IOException {
+        try (StandardJavaFileManagerPool pool = new StandardJavaFileManagerPool()) {
+            StandardJavaFileManager first = leaseAndReturn(pool, config("lib", "out1"));
+            StandardJavaFileManager second;
+            try (StandardJavaFileManagerPool.Lease lease = pool.acquire(config("lib", "out2"))) {
+                second = lease.getFileManager();
+                // The output locations are those of the new config, not of the previous lease.
+                assertEquals(Collections.singletonList(dir("out2")),
+                             toList(second.getLocation(CLASS_OUTPUT)));
+            }
+            assertSame(first, second);
+        }
+    }
+
+    @Test
+    public void doesNotReuseFileManagersWhoseInputLocationsDiffer() throws IOException {
+        try (StandardJavaFileManagerPool pool = new StandardJavaFileManagerPool()) {
+            StandardJavaFileManager first = leaseAndReturn(pool, config("lib1", "out"));
+            StandardJavaFileManager second = leaseAndReturn(pool, config("lib2", "out"));
+            assertNotSame(first, second);
+        }
+    }
+
+    @Test
+    public void neverLeasesOneFileManagerTwiceAtOnce() throws IOException {
+        try (StandardJavaFileManagerPool pool = new StandardJavaFileManagerPool();
+             StandardJavaFileManagerPool.Lease a = pool.acquire(config("lib", "out"));
+             StandardJavaFileManagerPool.Lease b = pool.acquire(config("lib", "out"))) {
+            assertNotSame(a.getFileManager(), b.getFileManager());
+        }
+    }
+
+    @Test
+    public void capsIdleFileManagersPerConfig() throws IOException {
+        try (StandardJavaFileManagerPool pool = new StandardJavaFileManagerPool(compiler, 1, 10)) {
+            StandardJavaFileManagerPool.Lease a = pool.acquire(config("lib", "out"));
+            StandardJavaFileManagerPool.Lease b = pool.acquire(config("lib", "out"));
+            StandardJavaFileManager kept = a.getFileManager();
+            StandardJavaFileManager closed = b.getFileManager();
+            a.close();
+            b.close();  // Beyond the cap, so it is closed rather than kept.
+            try (StandardJavaFileManagerPool.Lease c = pool.acquire(config("lib", "out"));
+                 StandardJavaFileManagerPool.Lease d = pool.acquire(config("lib", "out"))) {
+                assertSame(kept, c.getFileManager());
+                assertNotSame(closed, d.getFileManager());
+            }
+        }
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedConfigBeyondTheTotalCap() throws IOException {
+        try (StandardJavaFileManagerPool pool = new StandardJavaFileManagerPool(compiler, 4, 2)) {
+            StandardJavaFileManager a = leaseAndReturn(pool, config("a", "out"));
+            StandardJavaFileManager b = leaseAndReturn(pool, config("b", "out"));
+            // Using `a` again makes `b` the least recently used config.
+            assertSame(a, leaseAndReturn(pool, config("a", "out")));
+            StandardJavaFileManager c = leaseAndReturn(pool, config("c", "out"));
+
+            assertSame(a, leaseAndReturn(pool, config("a", "out")));
+            assertSame(c, leaseAndReturn(pool, config("c", "out")));
+            assertNotSame(b, leaseAndReturn(pool, config("b", "out")));
+        }
+    }
+
+    @Test
+    public void evictedConfigsGetNewFileManagers() throws IOException {
+        try (StandardJavaFileManagerPool pool = new StandardJavaFileManagerPool()) {
+            StandardJavaFileManager first = leaseAndReturn(pool, config("lib", "out"));
+            pool.evict(config("lib", "other-out"));
+            assertNotSame(first, leaseAndReturn(pool, config("lib", "out")));
+        }
+    }
+
+    @Test
+    public void closedPoolsRefuseToLease() throws IOException {
+        StandardJavaFileManagerPool pool = new StandardJavaFileManagerPool();
+        pool.close();
+        try {
+            pool.acquire(config("lib", "out"));
+            fail("A closed pool leased a file manager.");
+        } catch (IllegalStateException ex) {
+            // Expected.
+        }
+    }
+
+    private StandardJavaFileManager leaseAndReturn(StandardJavaFileManagerPool pool,
+                                                   StandardJavaFileManagerConfig config)
+                                                                            throws IOException {
+        try (StandardJavaFileManagerPool.Lease lease = pool.acquire(config)) {
+            return lease.getFileManager();
+        }
+    }
+
+    /**
+     * @return A config whose class path is the given directory and whose class output directory
+     *         is the other given directory. Both directories are created.
+     */
+    private StandardJavaFileManagerConfig config(String classPath, String classOutput)
+                                                                            throws IOException {
+        return makeConfig()
+                .addToClassPath(dir(classPath))
+                .setClassOutputDir(dir(classOutput));
+    }
+
+    private File dir(String name) throws IOException {
+        return Files.createDirectories(root.resolve(name)).toFile();
+    }
+
+    private static <T> List<T> toList(Iterable<T> iterable) {
+        List<T> list = new ArrayList<>();
+        iterable.forEach(list::add);
+        return list;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 David Johnston
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package me.dwtj.java.compiler.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Helpers for tests which compile source files in temporary directories.
+ *
+ * @author dwtj
+ */
+final class TestFiles {
+
+    private TestFiles() { }
+
+    /**
+     * @return A new, empty temporary directory.
+     */
+    static Path newTempDir() throws IOException {
+        return Files.createTempDirectory("java-compiler-utils-test");
+    }
+
+    /**
+     * Writes the given content to the file at the given path relative to the given directory,
+     * creating its parent directories if need be.
+     *
+     * @return The file.
+     */
+    static Path write(Path dir, String relativePath, String content) throws IOException {
+        Path file = dir.resolve(relativePath);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(UTF_8));
+        return file;
+    }
+
+    /**
+     * Deletes the given file or directory, along with everything within it.
+     */
+    static void deleteRecursively(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        }
+    }
+}